@@ -0,0 +1,82 @@
+package chess;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//операции доски: генерация всех ходов, выполнение хода, вывод, клонирование фигур
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoardBenchmark {
+    private Board board;
+    private Coordinates from, to;
+    private int move;
+    private Piece pawn, queen;
+    private final int[] buf = new int[Move.MAX_MOVES];
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws InvalidPositionException {
+        board = Fen.parse(MoveGenBenchmark.MIDDLEGAME);
+        board.getLegalMoves(buf);
+        move = buf[0];
+        from = Coordinates.of(Move.from(move));
+        to = Coordinates.of(Move.to(move));
+        pawn = new Pawn(Coordinates.of(4, 1), Color.WHITE);
+        queen = new Queen(Coordinates.of(3, 0), Color.WHITE);
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public int getLegalMoves() {
+        return board.getLegalMoves(buf);
+    }
+
+    @Benchmark
+    public List<Coordinates> getMoves() {
+        return board.getMoves(from);
+    }
+
+    @Benchmark
+    public int movePiece() {
+        int state = board.movePiece(from, to);
+        board.unmakeMove();
+        return state;
+    }
+
+    @Benchmark
+    public long makeUnmake() {
+        board.makeMove(move);
+        long key = board.getKey();
+        board.unmakeMove();
+        return key;
+    }
+
+    @Benchmark
+    public void drawBoard() {
+        board.drawBoard();
+    }
+
+    @Benchmark
+    public Piece clonePawn() {
+        return pawn.clone();
+    }
+
+    @Benchmark
+    public Piece cloneQueen() {
+        return queen.clone();
+    }
+}
@@ -0,0 +1,34 @@
+package chess;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//разбор и хэширование координат
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoordinatesBenchmark {
+    @Param({"e2", "h8"})
+    public String square;
+
+    private Coordinates pos;
+
+    @Setup
+    public void setup() throws InvalidMoveException {
+        pos = Coordinates.convert(square);
+    }
+
+    @Benchmark
+    public Coordinates convert() throws InvalidMoveException {
+        return Coordinates.convert(square);
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return pos.hashCode();
+    }
+}
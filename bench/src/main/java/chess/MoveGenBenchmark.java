@@ -0,0 +1,53 @@
+package chess;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//генерация ходов фигуры каждого типа в позиции миттельшпиля
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MoveGenBenchmark {
+    static final String MIDDLEGAME = "r2k1b1r/pp1nqppp/2n1p3/2bp4/3P1B2/2NBPN2/PPQ2PPP/R3K2R w - - 0 1";
+
+    @Param({"KING", "QUEEN", "ROOK", "BISHOP", "KNIGHT", "PAWN"})
+    public String type;
+
+    private Board board;
+    private Square square;
+    private Coordinates pos;
+    private final int[] buf = new int[Move.MAX_MOVES];
+
+    @Setup
+    public void setup() throws InvalidPositionException {
+        board = Fen.parse(MIDDLEGAME);
+        PieceType pieceType = PieceType.valueOf(type);
+        for (int i = 0; i < 64 && square == null; i++) {
+            Square sq = board.getSquare(Coordinates.of(i));
+            if (sq.hasPiece() && sq.getPieceType() == pieceType && sq.getPieceColor() == board.getActive()) {
+                square = sq;
+                pos = sq.getPos();
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Coordinates> squareGetMoves() {
+        return square.getMoves(board.getBits(), board.getActive());
+    }
+
+    @Benchmark
+    public int squareGetMovesPacked() {
+        return square.getMoves(board.getBits(), board.getActive(), buf, 0);
+    }
+
+    @Benchmark
+    public List<Coordinates> boardGetMoves() {
+        return board.getMoves(pos);
+    }
+}
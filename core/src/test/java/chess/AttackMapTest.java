@@ -0,0 +1,64 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+//инкрементальные карты атак совпадают с полным пересчетом, оценка размена - с разобранными вручную разменами
+class AttackMapTest {
+    @Test
+    void incrementalMapsMatchRebuild() throws InvalidPositionException {
+        SplittableRandom rnd = new SplittableRandom(11);
+        int[] moves = new int[Move.MAX_MOVES];
+        for (String fen : new String[]{Fen.START, PerftTest.CPW_POSITION_3}) {
+            for (int game = 0; game < 20; game++) {
+                Board board = Fen.parse(fen);
+                board.getAttackMap(Color.WHITE); //с первого запроса карты ведутся в movePiece
+                for (int ply = 0; ply < 100; ply++) {
+                    int n = board.getLegalMoves(moves);
+                    if (n == 0) break;
+                    int m = moves[rnd.nextInt(n)];
+                    board.movePiece(Coordinates.of(Move.from(m)), Coordinates.of(Move.to(m)));
+                    for (Color col : Color.values()) assertEquals(rebuild(board.getBits(), col), board.getAttackMap(col));
+                }
+            }
+        }
+    }
+
+    @Test
+    void isAttackedMatchesAttackers() throws InvalidPositionException {
+        Board board = Fen.parse(PerftTest.CPW_POSITION_3);
+        BitBoard bits = board.getBits();
+        for (int sq = 0; sq < 64; sq++) {
+            for (Color col : Color.values()) {
+                assertEquals(bits.attackersTo(sq, col, bits.getAll()) != 0, board.isAttacked(Coordinates.of(sq), col));
+            }
+        }
+    }
+
+    @Test
+    void staticExchange() throws InvalidPositionException {
+        assertEquals(100, see("1k1r4/1pp4p/p7/4p3/8/P5P1/1PP4P/2K1R3 w - - 0 1", "e1e5"));
+        assertEquals(-220, see("1k1r3q/1ppn3p/p4b2/4p3/8/P2N2P1/1PP1R1BP/2K1Q3 w - - 0 1", "d3e5"));
+    }
+
+    //полный пересчет карты: объединение атак всех фигур цвета
+    private static long rebuild(BitBoard bits, Color col) {
+        long map = 0L;
+        for (long m = bits.getOccupancy(col); m != 0; m &= m - 1) map |= bits.attacksFrom(Long.numberOfTrailingZeros(m));
+        return map;
+    }
+
+    //оценка размена для хода в записи "e1e5"
+    private static int see(String fen, String move) throws InvalidPositionException {
+        Board board = Fen.parse(fen);
+        int[] moves = new int[Move.MAX_MOVES];
+        int n = board.getLegalMoves(moves);
+        for (int i = 0; i < n; i++) {
+            if (Move.toString(moves[i]).equals(move)) return board.getBits().see(moves[i]);
+        }
+        throw new AssertionError("Нет хода " + move);
+    }
+}
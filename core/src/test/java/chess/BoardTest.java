@@ -0,0 +1,113 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+//запись и разбор FEN, выполнение и отмена ходов, инкрементальный ключ
+class BoardTest {
+    private static final String[] POSITIONS = {
+            Fen.START,
+            PerftTest.CPW_POSITION_3,
+            "r2k1b1r/ppp2ppp/2n1bn2/3pp3/3PP3/2N1BN2/PPP2PPP/R2K1B1R b - - 4 7",
+            "4k3/8/8/8/8/8/3r4/3RK3 w - - 12 40"
+    };
+
+    @Test
+    void fenRoundTrip() throws InvalidPositionException {
+        for (String fen : POSITIONS) {
+            assertEquals(fen, Fen.toFen(Fen.parse(fen)));
+        }
+    }
+
+    //у черных короля и ферзя lab4 поменяны местами: король на e8 считается ходившим
+    @Test
+    void standardStartLosesBlackCastling() throws InvalidPositionException {
+        assertEquals("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQ - 0 1", Fen.toFen(Fen.parse(Fen.STANDARD)));
+    }
+
+    @Test
+    void packedPositionRoundTrip() throws InvalidPositionException {
+        SplittableRandom rnd = new SplittableRandom(5);
+        int[] moves = new int[Move.MAX_MOVES];
+        Board board = new Board();
+        for (int ply = 0; ply < 80; ply++) {
+            int n = board.getLegalMoves(moves);
+            if (n == 0) break;
+            board.makeMove(moves[rnd.nextInt(n)]);
+            Board copy = board.pack().toBoard();
+            assertEquals(Fen.toFen(board), Fen.toFen(copy));
+            assertEquals(board.getKey(), copy.getKey());
+            for (int sq = 0; sq < 64; sq++) assertEquals(board.isMoved(sq), copy.isMoved(sq));
+        }
+    }
+
+    @Test
+    void invalidFenLeavesBoardUnchanged() throws InvalidPositionException {
+        Board board = Fen.parse(POSITIONS[2]);
+        for (String bad : new String[]{"8/8/8/8/8/8/8/7 w - - 0 1", "4k3/8/8/8/8/8/8/4K2x w - - 0 1",
+                "4k3/8/8/8/8/8/8/4K3 x - - 0 1", "4k3/8/8/8/8/8/8/4K3 w - - a 1",
+                "8/8/8/8/8/8/8/4K3 w - - 0 1", "4k3/8/8/8/8/8/8/3KK3 w - - 0 1", "4k3/8/8/8/8/8/8/4R1K1 w - - 0 1",
+                "4k3/8/8/8/4P3/8/8/4K3 w - e3 0 1", "4k3/8/8/8/4P3/8/8/4K3 b - e6 0 1", "4k3/8/8/8/8/8/8/4K3 b - e3 0 1",
+                "4k3/8/8/8/4P3/8/8/4K3 b - x9 0 1"}) {
+            assertThrows(InvalidPositionException.class, () -> Fen.setup(board, bad));
+            assertEquals(POSITIONS[2], Fen.toFen(board));
+        }
+    }
+
+    @Test
+    void snapshotFollowsMoveAndUndo() throws InvalidMoveException {
+        Board board = new Board();
+        String start = board.getSnapshot().toString();
+        board.movePiece(Coordinates.convert("e2"), Coordinates.convert("e4"));
+        assertEquals("rnbkqbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b", board.getSnapshot().toString());
+        board.unmakeMove();
+        assertEquals(start, board.getSnapshot().toString());
+        assertEquals(board.getKey(), board.getSnapshot().getKey());
+        board.movePiece(Coordinates.convert("d2"), Coordinates.convert("d4"));
+        assertEquals("rnbkqbnr/pppppppp/8/8/3P4/8/PPP1PPPP/RNBQKBNR b", board.getSnapshot().toString());
+        assertEquals(1, board.getSnapshot().getPly());
+    }
+
+    @Test
+    void squareViewsAreReadOnly() throws InvalidMoveException {
+        Board board = new Board();
+        Coordinates e2 = Coordinates.convert("e2");
+        Square sq = board.getSquare(e2);
+        assertThrows(UnsupportedOperationException.class, sq::removePiece);
+        assertThrows(UnsupportedOperationException.class, () -> sq.getPiece().incMoves());
+        assertThrows(UnsupportedOperationException.class, () -> board.getSqPiece(e2).addTag("x"));
+        Piece copy = board.getSqPiece(e2).clone();
+        copy.incMoves();
+        assertFalse(board.getSqPiece(e2).isMoved());
+    }
+
+    @Test
+    void enPassantFieldAccepted() throws InvalidPositionException {
+        assertEquals("4k3/8/8/8/4P3/8/8/4K3 b - - 0 1", Fen.toFen(Fen.parse("4k3/8/8/8/4P3/8/8/4K3 b - e3 0 1")));
+    }
+
+    @Test
+    void makeUnmakeRestoresPositionAndKey() throws InvalidPositionException {
+        SplittableRandom rnd = new SplittableRandom(42);
+        int[] moves = new int[Move.MAX_MOVES];
+        for (String fen : POSITIONS) {
+            Board board = Fen.parse(fen);
+            String before = Fen.toFen(board);
+            long key = board.getKey();
+            for (int ply = 0; ply < 60; ply++) {
+                int n = board.getLegalMoves(moves);
+                if (n == 0) break;
+                board.makeMove(moves[rnd.nextInt(n)]);
+                assertEquals(board.getBits().computeKey(board.getActive()), board.getKey());
+            }
+            board.rewind();
+            assertEquals(before, Fen.toFen(board));
+            assertEquals(key, board.getKey());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+//количество позиций perft для известных позиций (ошибка генерации ходов меняет счет)
+class PerftTest {
+    //позиция 3 из таблиц perft Chess Programming Wiki (без рокировок, превращений и взятий на проходе до глубины 2)
+    static final String CPW_POSITION_3 = "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1";
+
+    private static long perft(String fen, int depth) throws InvalidPositionException {
+        return new Perft(Fen.parse(fen), depth).perft(depth);
+    }
+
+    @Test
+    void standardStart() throws InvalidPositionException {
+        assertEquals(20, perft(Fen.STANDARD, 1));
+        assertEquals(400, perft(Fen.STANDARD, 2));
+        assertEquals(8902, perft(Fen.STANDARD, 3));
+        assertEquals(197281, perft(Fen.STANDARD, 4));
+    }
+
+    @Test
+    void cpwPosition3() throws InvalidPositionException {
+        assertEquals(14, perft(CPW_POSITION_3, 1));
+        assertEquals(191, perft(CPW_POSITION_3, 2));
+    }
+
+    @Test
+    void lab4Start() {
+        assertEquals(197561, new Perft(new Board(), 4).perft(4));
+    }
+
+    @Test
+    void parallelDivideMatchesSerial() {
+        Board board = new Board();
+        int[] moves = new int[Move.MAX_MOVES];
+        int n = board.getLegalMoves(moves);
+        long serial = 0, parallel = 0;
+        for (long c : Perft.divide(board, 3, moves, n, false)) serial += c;
+        for (long c : Perft.divide(board, 3, moves, n, true)) parallel += c;
+        assertEquals(serial, parallel);
+    }
+}
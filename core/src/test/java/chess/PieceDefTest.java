@@ -0,0 +1,31 @@
+package chess;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+//таблицы описаний фигур совпадают с таблицами BitBoard, по которым ищутся шахи и связки
+class PieceDefTest {
+    @Test
+    void leaperTablesMatchBitBoard() {
+        for (int sq = 0; sq < 64; sq++) {
+            assertEquals(BitBoard.KNIGHT_ATTACKS[sq], PieceDef.of(PieceType.KNIGHT).targets(sq));
+            assertEquals(BitBoard.KING_ATTACKS[sq], PieceDef.of(PieceType.KING).targets(sq));
+        }
+    }
+
+    @Test
+    void sliderAttacksMatchMagics() {
+        SplittableRandom rnd = new SplittableRandom(7);
+        for (int i = 0; i < 1000; i++) {
+            long occ = rnd.nextLong() & rnd.nextLong();
+            int sq = rnd.nextInt(64);
+            long rook = BitBoard.rookAttacks(sq, occ), bishop = BitBoard.bishopAttacks(sq, occ);
+            assertEquals(rook, PieceDef.of(PieceType.ROOK).attacks(sq, occ));
+            assertEquals(bishop, PieceDef.of(PieceType.BISHOP).attacks(sq, occ));
+            assertEquals(rook | bishop, PieceDef.of(PieceType.QUEEN).attacks(sq, occ));
+        }
+    }
+}
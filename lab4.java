@@ -1,5 +1,15 @@
 import java.util.*;
 import java.time.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.random.*;
+import java.util.stream.*;
 
 //исключение неправильного хода
 class InvalidMoveException extends Exception {
@@ -8,9 +18,23 @@ class InvalidMoveException extends Exception {
     }
 }
 
+//исключение некорректной позиции
+class InvalidPositionException extends Exception {
+    public InvalidPositionException(String message) {
+        super(message);
+    }
+}
+
 //типы фигур
 enum PieceType {
-    KING, QUEEN, ROOK, BISHOP, KNIGHT, PAWN
+    KING(10000), QUEEN(900), ROOK(500), BISHOP(330), KNIGHT(320), PAWN(100);
+
+    private final int value; //ценность фигуры
+
+    PieceType(int value) { this.value = value; }
+
+    //получить ценность фигуры
+    public int getValue() { return value; }
 }
 
 //цвет фигур
@@ -20,24 +44,60 @@ enum Color {
 
 //координаты клетки/фигуры
 class Coordinates {
-    private int x, y;
+    private final int x, y;
     private static final int BOARD_MAX_X = 7;
     private static final int BOARD_MAX_Y = 7;
+    private static final int CACHE_MIN = -8; //минимальная кэшируемая координата
+    private static final int CACHE_SIZE = 24; //покрывает результаты арифметики шаблонов от любой клетки
+    private static final Coordinates[] CACHE = new Coordinates[CACHE_SIZE * CACHE_SIZE]; //общие экземпляры
+    private static final int[][] OFFSETS = new int[64][25]; //клетка по смещению -2..2 (-1 - вне доски)
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new Coordinates(i / CACHE_SIZE + CACHE_MIN, i % CACHE_SIZE + CACHE_MIN);
+        }
+        for (int sq = 0; sq < 64; sq++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                for (int dy = -2; dy <= 2; dy++) {
+                    Coordinates t = of((sq & 7) + dx, (sq >>> 3) + dy);
+                    OFFSETS[sq][(dx + 2) * 5 + dy + 2] = t.checkBound() ? t.index() : -1;
+                }
+            }
+        }
+    }
+
+    public static final Coordinates NONE = of(-1, -1); //координаты вне доски
 
     public Coordinates() { this(0, 0); }
     public Coordinates(int x, int y) { this.x = x; this.y = y; }
 
+    //получение общего экземпляра координат
+    public static Coordinates of(int x, int y) {
+        int i = x - CACHE_MIN, j = y - CACHE_MIN;
+        if (i < 0 || i >= CACHE_SIZE || j < 0 || j >= CACHE_SIZE) return new Coordinates(x, y);
+        return CACHE[i * CACHE_SIZE + j];
+    }
+
+    //получение координат по номеру клетки 0..63
+    public static Coordinates of(int index) { return of(index & 7, index >>> 3); }
+
+    //номер клетки 0..63
+    public int index() { return y * 8 + x; }
+
+    //номер клетки по смещению не более чем на 2 по каждой оси (-1, если вне доски)
+    public static int offset(int index, int dx, int dy) { return OFFSETS[index][(dx + 2) * 5 + dy + 2]; }
+
     public int getX() { return x; } //получение координаты x
     public int getY() { return y; } //получение координаты y
 
     //сложение координат
-    public Coordinates add(Coordinates c) { return new Coordinates(x + c.x, y + c.y); }
+    public Coordinates add(Coordinates c) { return of(x + c.x, y + c.y); }
 
     //вычитание координат
-    public Coordinates subtract(Coordinates c) { return new Coordinates(x - c.x, y - c.y); }
+    public Coordinates subtract(Coordinates c) { return of(x - c.x, y - c.y); }
 
     //умножение координат
-    public Coordinates multiply(int n) { return new Coordinates(x * n, y * n); }
+    public Coordinates multiply(int n) { return of(x * n, y * n); }
 
     //сравнение координат
     public boolean equals(Coordinates c) { return x == c.x && y == c.y; }
@@ -58,7 +118,7 @@ class Coordinates {
     //получение хэш кода
     @Override
     public int hashCode() {
-        return Objects.hash(x, y);
+        return 31 * x + y;
     }
 
     //преобразование строки в координаты
@@ -71,21 +131,22 @@ class Coordinates {
         if (file < 'A' || file > 'H' || rank < '1' || rank > '8') {
             throw new InvalidMoveException("Координаты '" + str + "' вне доски.");
         }
-        return new Coordinates(file - 'A', rank - '1');
+        return of(file - 'A', rank - '1');
     }
 }
 
 //Абстрактный класс фигура
-abstract class Piece implements Cloneable{
+abstract class Piece implements Cloneable, Attackable {
     protected boolean isAlive = true; //состояние
     protected Color color; //цвет
     protected PieceType type; //тип
     protected Coordinates pos; //координаты
     protected int moves = 0; //кол-во ходов
-    protected List<String> tags = new ArrayList<>();
+    protected List<String> tags; //метки (список создается при первой метке)
+    protected boolean readOnly = false; //представление позиции доски: изменение запрещено
 
     public Piece(PieceType type) {
-        this(new Coordinates(0, 0), Color.WHITE, type);
+        this(Coordinates.of(0, 0), Color.WHITE, type);
     }
 
     public Piece(Coordinates pos, Color color, PieceType type) {
@@ -98,17 +159,42 @@ abstract class Piece implements Cloneable{
     @Override
     public Piece clone() {
         try {
-            return (Piece) super.clone();
+            Piece copy = (Piece) super.clone();
+            copy.readOnly = false;
+            return copy;
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    //запрет изменений (фигура - представление позиции, изменения которого на доску не влияют)
+    public Piece readOnly() {
+        readOnly = true;
+        return this;
+    }
+
+    //проверка, что фигуру можно изменять
+    protected void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Фигура только для чтения: ходы делаются через Board.movePiece");
+    }
+
     //установить координаты фигуры
-    public void setPos(Coordinates pos) { this.pos = pos; }
+    public void setPos(Coordinates pos) {
+        checkWritable();
+        this.pos = pos;
+    }
 
     //добавить ход
-    public void incMoves() { moves++; }
+    public void incMoves() {
+        checkWritable();
+        moves++;
+    }
+
+    //отменить ход
+    public void decMoves() {
+        checkWritable();
+        moves--;
+    }
 
     //получить ходы
     public int getMoves() { return moves; }
@@ -116,11 +202,33 @@ abstract class Piece implements Cloneable{
     //проверка передвижения
     public boolean isMoved() { return moves > 0; }
 
-    //получение шаблона фигуры
-    public abstract List<Coordinates> getPattern();
+    //добавить метку
+    public void addTag(String tag) {
+        checkWritable();
+        if (tags == null) tags = new ArrayList<>(2);
+        tags.add(tag);
+    }
+
+    //получить метки
+    public List<String> getTags() { return tags == null ? List.of() : readOnly ? List.copyOf(tags) : tags; }
+
+    //получение шаблона фигуры (общий неизменяемый список из описания фигуры)
+    public List<Coordinates> getPattern() { return PieceDef.of(type).getPattern(isMoved()); }
 
     //получить координаты фигуры
-    public Coordinates getPos() { return isAlive ? pos : new Coordinates(-1, -1); }
+    public Coordinates getPos() { return isAlive ? pos : Coordinates.NONE; }
+
+    //атака клетки на пустой доске (по таблице хода фигуры)
+    @Override
+    public boolean canAttack(Coordinates target) {
+        return (PieceDef.of(type).targets(pos.index()) & (1L << target.index())) != 0;
+    }
+
+    //атакуемые клетки с учетом загораживающих фигур
+    @Override
+    public long attacks(BitBoard bits) {
+        return PieceDef.of(type).attacks(pos.index(), bits.getAll());
+    }
 
     //получить цвет фигуры
     public Color getColor() { return color; }
@@ -129,13 +237,27 @@ abstract class Piece implements Cloneable{
     public PieceType getType() { return type; }
 
     //пометка уничтожения фигуры
-    public void setDead() { isAlive = false; }
+    public void setDead() {
+        checkWritable();
+        isAlive = false;
+    }
+
+    //пометка восстановления фигуры
+    public void setAlive() {
+        checkWritable();
+        isAlive = true;
+    }
 
     //проверка состояния
     public boolean isAlive() { return isAlive; }
 
     //вывод информации
     public void printInfo() {
+        System.out.print(info());
+    }
+
+    //информация о фигуре
+    public String info() {
         String typeStr = switch (type) {
             case BISHOP -> "Слон";
             case KING -> "Король";
@@ -145,10 +267,10 @@ abstract class Piece implements Cloneable{
             case ROOK -> "Ладья";
         };
         String colorStr = color == Color.WHITE ? "Белый" : "Черный";
-        System.out.println("Тип фигуры: " + typeStr);
-        System.out.println("Цвет фигуры: " + colorStr);
-        System.out.println("Текущая позиция: " + toString(pos));
-        System.out.println("Живой - " + isAlive);
+        return "Тип фигуры: " + typeStr + "\n"
+                + "Цвет фигуры: " + colorStr + "\n"
+                + "Текущая позиция: " + toString(pos) + "\n"
+                + "Живой - " + isAlive + "\n";
     }
 
     //вывод координат
@@ -158,21 +280,20 @@ abstract class Piece implements Cloneable{
 }
 
 interface Attackable {
+    //атакует ли фигура клетку на пустой доске
     boolean canAttack(Coordinates target);
+
+    //клетки, атакуемые фигурой в позиции битборда
+    long attacks(BitBoard bits);
+
+    //атакует ли фигура клетку с учетом загораживающих фигур
+    default boolean canAttack(Coordinates target, BitBoard bits) {
+        return (attacks(bits) & (1L << target.index())) != 0;
+    }
 }
 
 //Класс Пешка
 class Pawn extends Piece implements Attackable {
-    private static final List<Coordinates> FIRST_PATTERN = Arrays.asList(
-            new Coordinates(0, 1), new Coordinates(0, 2),
-            new Coordinates(-1, 1), new Coordinates(1, 1)
-    ); //шаблон первого хода
-
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(0, 1),
-            new Coordinates(-1, 1), new Coordinates(1, 1)
-    ); //шаблон хода, кроме первого
-
     public Pawn() { super(PieceType.PAWN); }
     public Pawn(Coordinates pos, Color col) { super(pos, col, PieceType.PAWN); }
 
@@ -180,7 +301,7 @@ class Pawn extends Piece implements Attackable {
     @Override
     public Pawn clone() {
         Pawn copy = (Pawn) super.clone();
-        copy.tags = new ArrayList<>(this.tags);
+        if (tags != null) copy.tags = new ArrayList<>(tags);
         return copy;
     }
 
@@ -192,96 +313,702 @@ class Pawn extends Piece implements Attackable {
         return dx == 1 && dy == (color == Color.WHITE ? 1 : -1);
     }
 
-    //получение шаблона передвижения
+    //пешка атакует только по диагонали вперед
     @Override
-    public List<Coordinates> getPattern() {
-        return isMoved() ? new ArrayList<>(PATTERN) : new ArrayList<>(FIRST_PATTERN);
+    public long attacks(BitBoard bits) {
+        return BitBoard.PAWN_ATTACKS[color.ordinal()][pos.index()];
     }
 }
 
 //Класс Слон
 class Bishop extends Piece {
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(-1,1), new Coordinates(1,1),
-            new Coordinates(-1,-1), new Coordinates(1,-1)
-    ); //шаблон хода
-
     public Bishop() { super(PieceType.BISHOP); }
     public Bishop(Coordinates pos, Color col) { super(pos, col, PieceType.BISHOP); }
-
-    //получение шаблона хода
-    @Override
-    public List<Coordinates> getPattern() { return new ArrayList<>(PATTERN); }
 }
 
 //Класс Король
 class King extends Piece {
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(-1,1), new Coordinates(0,1), new Coordinates(1,1),
-            new Coordinates(-1,0), new Coordinates(1,0),
-            new Coordinates(-1,-1), new Coordinates(0,-1), new Coordinates(1,-1)
-    ); //шаблон хода
-
     public King() { super(PieceType.KING); }
     public King(Coordinates pos, Color col) { super(pos, col, PieceType.KING); }
-
-    //получение шаблона передвижения
-    @Override
-    public List<Coordinates> getPattern() { return new ArrayList<>(PATTERN); }
 }
 
 //Класс Конь
 class Knight extends Piece {
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(-1,2), new Coordinates(1,2),
-            new Coordinates(2,1), new Coordinates(2,-1),
-            new Coordinates(1,-2), new Coordinates(-1,-2),
-            new Coordinates(-2,-1), new Coordinates(-2,1)
-    ); //шаблон передвижения
-
     public Knight() { super(PieceType.KNIGHT); }
     public Knight(Coordinates pos, Color col) { super(pos, col, PieceType.KNIGHT); }
-
-    //получение шаблона передвижения
-    @Override
-    public List<Coordinates> getPattern() { return new ArrayList<>(PATTERN); }
 }
 
 //Класс Ферзь
 class Queen extends Piece {
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(-1,1), new Coordinates(0,1), new Coordinates(1,1),
-            new Coordinates(-1,0), new Coordinates(1,0),
-            new Coordinates(-1,-1), new Coordinates(0,-1), new Coordinates(1,-1)
-    ); //шаблон хода фигуры
-
     public Queen() { super(PieceType.QUEEN); }
     public Queen(Coordinates pos, Color col) { super(pos, col, PieceType.QUEEN); }
-
-    //получение шаблона передвижения
-    @Override
-    public List<Coordinates> getPattern() { return new ArrayList<>(PATTERN); }
 }
 
 //Класс Ладья
 class Rook extends Piece {
-    private static final List<Coordinates> PATTERN = Arrays.asList(
-            new Coordinates(0,1), new Coordinates(1,0),
-            new Coordinates(-1,0), new Coordinates(0,-1)
-    ); //шаблон хода фигуры
-
     public Rook() { super(PieceType.ROOK); }
     public Rook(Coordinates pos, Color col) { super(pos, col, PieceType.ROOK); }
+}
 
-    //получение шаблона передвижения
-    @Override
-    public List<Coordinates> getPattern() { return new ArrayList<>(PATTERN); }
+//Класс Описание хода фигуры (правила в виде данных, скомпилированные в таблицы по клеткам)
+//Описания задаются только при инициализации класса: шахи, связки и SEE в BitBoard используют таблицы
+//коня, короля, пешки и магические таблицы ладьи и слона, поэтому менять фигуры во время игры нельзя
+final class PieceDef {
+    //вид движения
+    public enum Kind { LEAPER, SLIDER, PAWN }
+
+    private static final PieceDef[] DEFS = new PieceDef[PieceType.values().length]; //описания по типу фигуры
+    private static final List<Coordinates> ORTHOGONAL = List.of(
+            Coordinates.of(0, 1), Coordinates.of(1, 0),
+            Coordinates.of(-1, 0), Coordinates.of(0, -1)
+    ); //направления по вертикали и горизонтали
+    private static final List<Coordinates> DIAGONAL = List.of(
+            Coordinates.of(-1, 1), Coordinates.of(1, 1),
+            Coordinates.of(-1, -1), Coordinates.of(1, -1)
+    ); //направления по диагоналям
+
+    static {
+        register(PieceType.KING, Kind.LEAPER, List.of(
+                Coordinates.of(-1, 1), Coordinates.of(0, 1), Coordinates.of(1, 1),
+                Coordinates.of(-1, 0), Coordinates.of(1, 0),
+                Coordinates.of(-1, -1), Coordinates.of(0, -1), Coordinates.of(1, -1)));
+        List<Coordinates> queen = new ArrayList<>(ORTHOGONAL);
+        queen.addAll(DIAGONAL);
+        register(PieceType.QUEEN, Kind.SLIDER, queen);
+        register(PieceType.ROOK, Kind.SLIDER, ORTHOGONAL);
+        register(PieceType.BISHOP, Kind.SLIDER, DIAGONAL);
+        register(PieceType.KNIGHT, Kind.LEAPER, List.of(
+                Coordinates.of(-1, 2), Coordinates.of(1, 2),
+                Coordinates.of(2, 1), Coordinates.of(2, -1),
+                Coordinates.of(1, -2), Coordinates.of(-1, -2),
+                Coordinates.of(-2, -1), Coordinates.of(-2, 1)));
+        register(PieceType.PAWN, Kind.PAWN, List.of(
+                Coordinates.of(0, 1),
+                Coordinates.of(-1, 1), Coordinates.of(1, 1)));
+    }
+
+    private final PieceType type; //тип фигуры
+    private final Kind kind; //вид движения
+    private final List<Coordinates> pattern; //шаблон хода
+    private final List<Coordinates> firstPattern; //шаблон первого хода (у пешки добавляется ход на две клетки)
+    private final long[] targets = new long[64]; //клетки хода прыгающей фигуры или лучи дальнобойной на пустой доске
+    private final int[] dirs; //направления лучей дальнобойной фигуры
+    private final boolean orthogonal; //ходит как ладья
+    private final boolean diagonal; //ходит как слон
+    private final int[] extraDirs; //направления, не покрытые магическими таблицами ладьи и слона
+
+    private PieceDef(PieceType type, Kind kind, List<Coordinates> pattern) {
+        this.type = type;
+        this.kind = kind;
+        this.pattern = List.copyOf(pattern);
+        if (kind == Kind.PAWN) {
+            List<Coordinates> first = new ArrayList<>(pattern);
+            first.add(1, Coordinates.of(0, 2));
+            this.firstPattern = List.copyOf(first);
+        } else {
+            this.firstPattern = this.pattern;
+        }
+        for (Coordinates v : pattern) {
+            if ((v.getX() == 0 && v.getY() == 0) || Math.abs(v.getX()) > 7 || Math.abs(v.getY()) > 7) {
+                throw new IllegalArgumentException("Некорректный шаг фигуры " + type + ": " + v);
+            }
+        }
+        this.dirs = new int[kind == Kind.SLIDER ? pattern.size() : 0];
+        for (int i = 0; i < dirs.length; i++) {
+            Coordinates v = pattern.get(i);
+            dirs[i] = BitBoard.direction(v.getX(), v.getY());
+            if (dirs[i] < 0) throw new IllegalArgumentException("Шаг дальнобойной фигуры должен быть единичным: " + v);
+        }
+        this.orthogonal = pattern.containsAll(ORTHOGONAL);
+        this.diagonal = pattern.containsAll(DIAGONAL);
+        this.extraDirs = Arrays.stream(dirs)
+                .filter(d -> !(orthogonal && (d & 1) == 0) && !(diagonal && (d & 1) == 1))
+                .toArray();
+        for (int sq = 0; sq < 64; sq++) {
+            if (kind == Kind.LEAPER) {
+                for (Coordinates v : pattern) {
+                    Coordinates t = Coordinates.of((sq & 7) + v.getX(), (sq >>> 3) + v.getY());
+                    if (t.checkBound()) targets[sq] |= 1L << t.index();
+                }
+            } else {
+                for (int dir : dirs) targets[sq] |= BitBoard.RAYS[dir][sq];
+            }
+        }
+    }
+
+    //регистрация описания фигуры с построением таблиц (только из статической инициализации)
+    private static void register(PieceType type, Kind kind, List<Coordinates> pattern) {
+        DEFS[type.ordinal()] = new PieceDef(type, kind, pattern);
+    }
+
+    //описание фигуры по типу
+    public static PieceDef of(PieceType type) {
+        return DEFS[type.ordinal()];
+    }
+
+    public PieceType getType() { return type; }
+
+    public Kind getKind() { return kind; }
+
+    //проверка дальнобойной фигуры
+    public boolean isSlider() { return kind == Kind.SLIDER; }
+
+    //проверка пешки
+    public boolean isPawn() { return kind == Kind.PAWN; }
+
+    //шаблон хода (неизменяемый список)
+    public List<Coordinates> getPattern(boolean moved) {
+        return moved ? pattern : firstPattern;
+    }
+
+    //направления лучей дальнобойной фигуры
+    public int[] getDirs() { return dirs; }
+
+    //клетки хода на пустой доске
+    public long targets(int sq) { return targets[sq]; }
+
+    //атакуемые клетки с учетом занятых
+    public long attacks(int sq, long occ) {
+        if (kind != Kind.SLIDER) return targets[sq];
+        long a = 0L;
+        if (orthogonal) a |= BitBoard.rookAttacks(sq, occ);
+        if (diagonal) a |= BitBoard.bishopAttacks(sq, occ);
+        for (int dir : extraDirs) a |= BitBoard.rayAttacks(dir, sq, occ);
+        return a;
+    }
+}
+
+//Класс Ход (упакованный в int)
+final class Move {
+    //биты 0-5 - откуда, 6-11 - куда, 12-14 - тип фигуры, 15-17 - тип взятой фигуры + 1, 18 и выше - флаги
+    public static final int NONE = 0; //отсутствие хода
+    public static final int MAX_MOVES = 256; //достаточный размер буфера ходов для одной позиции
+    public static final int DOUBLE_PUSH = 1 << 18; //первый ход пешки на две клетки
+    private static final PieceType[] TYPES = PieceType.values(); //типы фигур по индексу
+
+    private Move() { }
+
+    //упаковка хода
+    public static int of(int from, int to, int piece, int captured, int flags) {
+        return from | (to << 6) | (piece << 12) | ((captured + 1) << 15) | flags;
+    }
+
+    //клетка, откуда сделан ход
+    public static int from(int move) { return move & 63; }
+
+    //клетка, куда сделан ход
+    public static int to(int move) { return (move >>> 6) & 63; }
+
+    //тип фигуры, сделавшей ход
+    public static PieceType piece(int move) { return TYPES[(move >>> 12) & 7]; }
+
+    //проверка взятия
+    public static boolean isCapture(int move) { return ((move >>> 15) & 7) != 0; }
+
+    //тип взятой фигуры (null, если взятия нет)
+    public static PieceType captured(int move) {
+        int c = (move >>> 15) & 7;
+        return c == 0 ? null : TYPES[c - 1];
+    }
+
+    //проверка флага
+    public static boolean hasFlag(int move, int flag) { return (move & flag) != 0; }
+
+    //запись хода в виде e2e4
+    public static String toString(int move) {
+        int from = from(move), to = to(move);
+        return "" + (char) ('a' + (from & 7)) + (from / 8 + 1) + (char) ('a' + (to & 7)) + (to / 8 + 1);
+    }
+}
+
+//Класс Ключи Зобриста
+final class Zobrist {
+    public static final long[][] PIECES = new long[12][64]; //ключи по индексу фигуры и клетке
+    public static final long SIDE; //ключ хода черных
+
+    static {
+        SplittableRandom rnd = new SplittableRandom(0x5EEDC0FFEEL);
+        for (long[] keys : PIECES) {
+            for (int sq = 0; sq < 64; sq++) keys[sq] = rnd.nextLong();
+        }
+        SIDE = rnd.nextLong();
+    }
+
+    private Zobrist() { }
+}
+
+//Класс Битборд (позиция в виде масок)
+class BitBoard {
+    public static final long[] KNIGHT_ATTACKS = new long[64]; //таблица ходов коня
+    public static final long[] KING_ATTACKS = new long[64]; //таблица ходов короля
+    public static final long[][] RAYS = new long[8][64]; //лучи по направлениям
+    public static final long[][] PAWN_ATTACKS = new long[2][64]; //атакуемые пешкой клетки по цвету
+    public static final long[][] BETWEEN = new long[64][64]; //клетки строго между двумя клетками на одной линии
+    public static final long[][] LINE = new long[64][64]; //вся линия через две клетки
+    private static final int[] DIR_X = {0, 1, 1, 1, 0, -1, -1, -1}; //направления по x
+    private static final int[] DIR_Y = {1, 1, 0, -1, -1, -1, 0, 1}; //направления по y
+    private static final int[] ROOK_DIRS = {0, 2, 4, 6}; //направления ладьи
+    private static final int[] BISHOP_DIRS = {1, 3, 5, 7}; //направления слона
+    private static final PieceType[] TYPES = PieceType.values(); //типы фигур по индексу
+    public static final int[][][] RAY_SQUARES = new int[8][64][]; //клетки лучей по порядку удаления от клетки
+    private static final long[] ROOK_MASKS = new long[64]; //значимые клетки для атак ладьи
+    private static final long[] BISHOP_MASKS = new long[64]; //значимые клетки для атак слона
+    private static final long[] ROOK_MAGICS = new long[64]; //магические множители ладьи
+    private static final long[] BISHOP_MAGICS = new long[64]; //магические множители слона
+    private static final int[] ROOK_SHIFTS = new int[64]; //сдвиги индекса ладьи
+    private static final int[] BISHOP_SHIFTS = new int[64]; //сдвиги индекса слона
+    private static final int[] ROOK_OFFSETS = new int[64]; //начало таблицы атак ладьи для клетки
+    private static final int[] BISHOP_OFFSETS = new int[64]; //начало таблицы атак слона для клетки
+    private static final long[] ROOK_TABLE; //атаки ладьи по магическому индексу
+    private static final long[] BISHOP_TABLE; //атаки слона по магическому индексу
+    private static final long[] MAGIC_SEEDS = {728, 10316, 55013, 32803, 12281, 15100, 16645, 255}; //зерна по горизонталям
+
+    private final long[] pieces = new long[12]; //маски фигур по цвету и типу
+    private final long[] occupancy = new long[2]; //маски фигур по цвету
+    private long all; //маска всех фигур
+    private final byte[] mailbox = new byte[64]; //индекс фигуры на клетке (-1 - пусто)
+    private long key; //ключ Зобриста позиции
+    private long pawnKey; //ключ Зобриста только пешек
+    private int mgScore; //материал и клетки в миттельшпиле (белые минус черные)
+    private int egScore; //материал и клетки в эндшпиле
+    private int phase; //фаза игры по оставшимся фигурам
+    private int[] seeGain; //выигрыш по шагам размена (создается при первой оценке размена)
+    private static final PieceType[] SEE_ORDER = {PieceType.PAWN, PieceType.KNIGHT, PieceType.BISHOP,
+            PieceType.ROOK, PieceType.QUEEN, PieceType.KING}; //порядок вступления фигур в размен
+
+    static {
+        int[][] knight = {{-1, 2}, {1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}};
+        for (int sq = 0; sq < 64; sq++) {
+            int x = sq & 7, y = sq >>> 3;
+            for (int[] d : knight) {
+                if (onBoard(x + d[0], y + d[1])) KNIGHT_ATTACKS[sq] |= bit(x + d[0], y + d[1]);
+            }
+            for (int dir = 0; dir < 8; dir++) {
+                if (onBoard(x + DIR_X[dir], y + DIR_Y[dir])) KING_ATTACKS[sq] |= bit(x + DIR_X[dir], y + DIR_Y[dir]);
+                for (int n = 1; onBoard(x + DIR_X[dir] * n, y + DIR_Y[dir] * n); n++) {
+                    RAYS[dir][sq] |= bit(x + DIR_X[dir] * n, y + DIR_Y[dir] * n);
+                }
+            }
+            for (int dx = -1; dx <= 1; dx += 2) {
+                if (onBoard(x + dx, y + 1)) PAWN_ATTACKS[Color.WHITE.ordinal()][sq] |= bit(x + dx, y + 1);
+                if (onBoard(x + dx, y - 1)) PAWN_ATTACKS[Color.BLACK.ordinal()][sq] |= bit(x + dx, y - 1);
+            }
+        }
+        for (int sq = 0; sq < 64; sq++) {
+            for (int dir = 0; dir < 8; dir++) {
+                long ray = RAYS[dir][sq];
+                long line = ray | RAYS[(dir + 4) & 7][sq] | (1L << sq);
+                for (long r = ray; r != 0; r &= r - 1) {
+                    int t = Long.numberOfTrailingZeros(r);
+                    BETWEEN[sq][t] = ray ^ RAYS[dir][t] ^ (1L << t);
+                    LINE[sq][t] = line;
+                }
+                int[] walk = new int[Long.bitCount(ray)];
+                for (int n = 1; n <= walk.length; n++) walk[n - 1] = square(x(sq) + DIR_X[dir] * n, y(sq) + DIR_Y[dir] * n);
+                RAY_SQUARES[dir][sq] = walk;
+            }
+        }
+        ROOK_TABLE = initMagics(ROOK_DIRS, ROOK_MASKS, ROOK_MAGICS, ROOK_SHIFTS, ROOK_OFFSETS);
+        BISHOP_TABLE = initMagics(BISHOP_DIRS, BISHOP_MASKS, BISHOP_MAGICS, BISHOP_SHIFTS, BISHOP_OFFSETS);
+    }
+
+    private static int x(int sq) { return sq & 7; }
+
+    private static int y(int sq) { return sq >>> 3; }
+
+    //поиск магических множителей и заполнение таблицы атак; зерна генератора по горизонталям подобраны
+    //так, что множители находятся за несколько тысяч попыток и одинаковы при каждом запуске
+    private static long[] initMagics(int[] dirs, long[] masks, long[] magics, int[] shifts, int[] offsets) {
+        int total = 0;
+        for (int sq = 0; sq < 64; sq++) {
+            long mask = 0L;
+            for (int dir : dirs) {
+                int[] walk = RAY_SQUARES[dir][sq];
+                for (int i = 0; i < walk.length - 1; i++) mask |= 1L << walk[i];
+            }
+            masks[sq] = mask;
+            shifts[sq] = 64 - Long.bitCount(mask);
+            offsets[sq] = total;
+            total += 1 << Long.bitCount(mask);
+        }
+        long[] table = new long[total];
+        long[] occs = new long[1 << 12];
+        long[] attacks = new long[1 << 12];
+        int[] epoch = new int[1 << 12];
+        int tries = 0;
+        for (int sq = 0; sq < 64; sq++) {
+            long[] seed = {MAGIC_SEEDS[sq >>> 3]};
+            long mask = masks[sq];
+            int n = 0;
+            long occ = 0L;
+            do {
+                occs[n] = occ;
+                attacks[n++] = slideAttacks(dirs, sq, occ);
+                occ = (occ - mask) & mask;
+            } while (occ != 0);
+            int shift = shifts[sq];
+            while (true) {
+                long magic = nextRandom(seed) & nextRandom(seed) & nextRandom(seed);
+                if (Long.bitCount((mask * magic) & 0xFF00000000000000L) < 6) continue;
+                tries++;
+                boolean ok = true;
+                for (int i = 0; i < n && ok; i++) {
+                    int idx = (int) ((occs[i] * magic) >>> shift);
+                    if (epoch[idx] != tries) {
+                        epoch[idx] = tries;
+                        table[offsets[sq] + idx] = attacks[i];
+                    } else if (table[offsets[sq] + idx] != attacks[i]) {
+                        ok = false;
+                    }
+                }
+                if (ok) {
+                    magics[sq] = magic;
+                    break;
+                }
+            }
+        }
+        return table;
+    }
+
+    //генератор xorshift64* для поиска множителей
+    private static long nextRandom(long[] state) {
+        long s = state[0];
+        s ^= s >>> 12;
+        s ^= s << 25;
+        s ^= s >>> 27;
+        state[0] = s;
+        return s * 2685821657736338717L;
+    }
+
+    //атаки дальнобойной фигуры обходом лучей (для построения таблиц)
+    private static long slideAttacks(int[] dirs, int sq, long occ) {
+        long a = 0L;
+        for (int dir : dirs) a |= rayAttacks(dir, sq, occ);
+        return a;
+    }
+
+    public BitBoard() { clear(); }
+
+    //номер клетки по координатам
+    public static int square(int x, int y) { return y * 8 + x; }
+
+    //маска клетки по координатам
+    public static long bit(int x, int y) { return 1L << square(x, y); }
+
+    //проверка принадлежности координат доске
+    private static boolean onBoard(int x, int y) { return x >= 0 && x < 8 && y >= 0 && y < 8; }
+
+    //индекс маски фигуры
+    public static int index(PieceType type, Color col) { return col.ordinal() * 6 + type.ordinal(); }
+
+    //тип фигуры по индексу маски
+    public static PieceType type(int idx) { return TYPES[idx % 6]; }
+
+    //цвет фигуры по индексу маски
+    public static Color color(int idx) { return idx < 6 ? Color.BLACK : Color.WHITE; }
+
+    //очистка позиции
+    public void clear() {
+        Arrays.fill(pieces, 0L);
+        Arrays.fill(occupancy, 0L);
+        Arrays.fill(mailbox, (byte) -1);
+        all = 0L;
+        key = 0L;
+        pawnKey = 0L;
+        mgScore = egScore = phase = 0;
+    }
+
+    //поставить фигуру на клетку
+    public void put(int sq, PieceType type, Color col) {
+        long b = 1L << sq;
+        int idx = index(type, col);
+        pieces[idx] |= b;
+        occupancy[col.ordinal()] |= b;
+        all |= b;
+        mailbox[sq] = (byte) idx;
+        key ^= Zobrist.PIECES[idx][sq];
+        if (type == PieceType.PAWN) pawnKey ^= Zobrist.PIECES[idx][sq];
+        mgScore += Evaluator.MG[idx][sq];
+        egScore += Evaluator.EG[idx][sq];
+        phase += Evaluator.PHASE[type.ordinal()];
+    }
+
+    //убрать фигуру с клетки
+    public void remove(int sq) {
+        int idx = mailbox[sq];
+        if (idx < 0) return;
+        long b = ~(1L << sq);
+        pieces[idx] &= b;
+        occupancy[idx / 6] &= b;
+        all &= b;
+        mailbox[sq] = -1;
+        key ^= Zobrist.PIECES[idx][sq];
+        if (idx % 6 == PieceType.PAWN.ordinal()) pawnKey ^= Zobrist.PIECES[idx][sq];
+        mgScore -= Evaluator.MG[idx][sq];
+        egScore -= Evaluator.EG[idx][sq];
+        phase -= Evaluator.PHASE[idx % 6];
+    }
+
+    //смена стороны в ключе позиции
+    public void toggleSide() { key ^= Zobrist.SIDE; }
+
+    //получить ключ Зобриста позиции
+    public long getKey() { return key; }
+
+    //ключ только пешек
+    public long getPawnKey() { return pawnKey; }
+
+    //сумма материала и клеток в миттельшпиле
+    public int getMgScore() { return mgScore; }
+
+    //сумма материала и клеток в эндшпиле
+    public int getEgScore() { return egScore; }
+
+    //фаза игры (24 - все фигуры на доске, 0 - только короли и пешки)
+    public int getPhase() { return phase; }
+
+    //вычислить ключ позиции заново (для проверки инкрементального ключа)
+    public long computeKey(Color active) {
+        long k = active == Color.BLACK ? Zobrist.SIDE : 0L;
+        for (int sq = 0; sq < 64; sq++) {
+            if (mailbox[sq] >= 0) k ^= Zobrist.PIECES[mailbox[sq]][sq];
+        }
+        return k;
+    }
+
+    //получить индекс фигуры на клетке
+    public int pieceAt(int sq) { return mailbox[sq]; }
+
+    //получить маску фигур
+    public long getPieces(PieceType type, Color col) { return pieces[index(type, col)]; }
+
+    //получить маску фигур цвета
+    public long getOccupancy(Color col) { return occupancy[col.ordinal()]; }
+
+    //получить маску всех фигур
+    public long getAll() { return all; }
+
+    //атаки по лучу в направлении с учетом блокирующих фигур
+    static long rayAttacks(int dir, int sq, long occ) {
+        long ray = RAYS[dir][sq];
+        long blockers = ray & occ;
+        if (blockers == 0) return ray;
+        int b = (dir == 0 || dir == 1 || dir == 2 || dir == 7)
+                ? Long.numberOfTrailingZeros(blockers)
+                : 63 - Long.numberOfLeadingZeros(blockers);
+        return ray ^ RAYS[dir][b];
+    }
+
+    //атаки ладьи (магическая таблица)
+    public static long rookAttacks(int sq, long occ) {
+        return ROOK_TABLE[ROOK_OFFSETS[sq] + (int) (((occ & ROOK_MASKS[sq]) * ROOK_MAGICS[sq]) >>> ROOK_SHIFTS[sq])];
+    }
+
+    //атаки слона (магическая таблица)
+    public static long bishopAttacks(int sq, long occ) {
+        return BISHOP_TABLE[BISHOP_OFFSETS[sq] + (int) (((occ & BISHOP_MASKS[sq]) * BISHOP_MAGICS[sq]) >>> BISHOP_SHIFTS[sq])];
+    }
+
+    //направление луча по единичному шагу (-1, если шаг не единичный)
+    public static int direction(int dx, int dy) {
+        for (int dir = 0; dir < 8; dir++) {
+            if (DIR_X[dir] == dx && DIR_Y[dir] == dy) return dir;
+        }
+        return -1;
+    }
+
+    //продолжительные ходы (слон, ладья, ферзь)
+    public long contMoves(int sq, PieceType type, Color active) {
+        return PieceDef.of(type).attacks(sq, all) & ~occupancy[active.ordinal()];
+    }
+
+    //короткие ходы (король, конь)
+    public long shortMoves(int sq, PieceType type, Color active) {
+        return PieceDef.of(type).targets(sq) & ~occupancy[active.ordinal()];
+    }
+
+    //ходы пешки
+    public long pawnMoves(int sq, Color col, boolean moved, Color active) {
+        int x = sq & 7, y = sq >>> 3;
+        int dy = col == Color.WHITE ? 1 : -1;
+        long moves = 0L;
+        if (!onBoard(x, y + dy)) return 0L;
+        boolean forwardFree = (all & bit(x, y + dy)) == 0;
+        if (forwardFree) {
+            moves |= bit(x, y + dy);
+            if (!moved && onBoard(x, y + 2 * dy)) moves |= bit(x, y + 2 * dy) & ~all;
+        }
+        long enemies = all & ~occupancy[active.ordinal()];
+        if (x > 0) moves |= bit(x - 1, y + dy) & enemies;
+        if (x < 7) moves |= bit(x + 1, y + dy) & enemies;
+        return moves;
+    }
+
+    //противоположный цвет
+    public static Color opposite(Color col) { return col == Color.WHITE ? Color.BLACK : Color.WHITE; }
+
+    //клетка короля цвета (-1, если короля нет)
+    public int kingSquare(Color col) {
+        long k = pieces[index(PieceType.KING, col)];
+        return k == 0 ? -1 : Long.numberOfTrailingZeros(k);
+    }
+
+    //маска фигур цвета by, атакующих клетку при заданной занятости
+    public long attackersTo(int sq, Color by, long occ) {
+        int c = by.ordinal() * 6;
+        long queens = pieces[c + PieceType.QUEEN.ordinal()];
+        return (PAWN_ATTACKS[opposite(by).ordinal()][sq] & pieces[c + PieceType.PAWN.ordinal()])
+                | (KNIGHT_ATTACKS[sq] & pieces[c + PieceType.KNIGHT.ordinal()])
+                | (KING_ATTACKS[sq] & pieces[c + PieceType.KING.ordinal()])
+                | (rookAttacks(sq, occ) & (pieces[c + PieceType.ROOK.ordinal()] | queens))
+                | (bishopAttacks(sq, occ) & (pieces[c + PieceType.BISHOP.ordinal()] | queens));
+    }
+
+    //клетки, атакуемые фигурой на клетке
+    public long attacksFrom(int sq) {
+        int idx = mailbox[sq];
+        if (idx < 0) return 0L;
+        if (idx % 6 == PieceType.PAWN.ordinal()) return PAWN_ATTACKS[idx < 6 ? 0 : 1][sq];
+        return PieceDef.of(TYPES[idx % 6]).attacks(sq, all);
+    }
+
+    //статическая оценка размена на клетке хода без выполнения ходов (в единицах PieceType.getValue)
+    public int see(int move) {
+        int from = Move.from(move), to = Move.to(move);
+        if (seeGain == null) seeGain = new int[34];
+        int[] gain = seeGain;
+        int d = 0;
+        PieceType captured = Move.captured(move);
+        gain[0] = captured == null ? 0 : captured.getValue();
+        int attackerValue = TYPES[mailbox[from] % 6].getValue();
+        Color side = opposite(mailbox[from] < 6 ? Color.BLACK : Color.WHITE); //сторона, отвечающая взятием
+        long occ = all ^ (1L << from);
+        long attackers = (attackersTo(to, Color.WHITE, occ) | attackersTo(to, Color.BLACK, occ)) & occ;
+        while (true) {
+            d++;
+            gain[d] = attackerValue - gain[d - 1];
+            long own = attackers & occupancy[side.ordinal()];
+            if (own == 0) break;
+            int sq = -1;
+            for (PieceType t : SEE_ORDER) {
+                long b = own & pieces[index(t, side)];
+                if (b != 0) {
+                    sq = Long.numberOfTrailingZeros(b);
+                    break;
+                }
+            }
+            if (TYPES[mailbox[sq] % 6] == PieceType.KING && (attackers & occupancy[opposite(side).ordinal()] & occ) != 0) break;
+            attackerValue = TYPES[mailbox[sq] % 6].getValue();
+            occ ^= 1L << sq;
+            attackers = (attackersTo(to, Color.WHITE, occ) | attackersTo(to, Color.BLACK, occ)) & occ;
+            side = opposite(side);
+        }
+        while (--d > 0) gain[d - 1] = -Math.max(-gain[d - 1], gain[d]);
+        return gain[0];
+    }
+
+    //маска фигур, объявляющих шах королю цвета
+    public long checkers(Color side) {
+        int king = kingSquare(side);
+        return king < 0 ? 0L : attackersTo(king, opposite(side), all);
+    }
+
+    //проверка шаха королю цвета
+    public boolean isInCheck(Color side) { return checkers(side) != 0; }
+
+    //маска связанных фигур цвета
+    public long pinned(Color side) {
+        int king = kingSquare(side);
+        if (king < 0) return 0L;
+        int e = opposite(side).ordinal() * 6;
+        long queens = pieces[e + PieceType.QUEEN.ordinal()];
+        long snipers = (rookAttacks(king, 0L) & (pieces[e + PieceType.ROOK.ordinal()] | queens))
+                | (bishopAttacks(king, 0L) & (pieces[e + PieceType.BISHOP.ordinal()] | queens));
+        long result = 0L;
+        while (snipers != 0) {
+            long between = BETWEEN[king][Long.numberOfTrailingZeros(snipers)] & all;
+            if (Long.bitCount(between) == 1) result |= between & occupancy[side.ordinal()];
+            snipers &= snipers - 1;
+        }
+        return result;
+    }
+
+    //записать легальные ходы цвета в буфер, возвращает новое количество ходов
+    public int generateLegal(Color side, int[] buf, int n) {
+        int king = kingSquare(side);
+        if (king < 0) return generate(side, buf, n);
+        Color enemy = opposite(side);
+        long checkers = attackersTo(king, enemy, all);
+        long pinned = pinned(side);
+        long kingBit = 1L << king;
+
+        long kingMoves = shortMoves(king, PieceType.KING, side);
+        long safe = 0L;
+        for (long m = kingMoves; m != 0; m &= m - 1) {
+            int to = Long.numberOfTrailingZeros(m);
+            if (attackersTo(to, enemy, all ^ kingBit) == 0) safe |= 1L << to;
+        }
+        n = addMoves(king, safe, buf, n);
+        if (Long.bitCount(checkers) > 1) return n;
+
+        long allowed = ~kingBit;
+        if (checkers != 0) {
+            allowed = checkers | BETWEEN[king][Long.numberOfTrailingZeros(checkers)];
+        }
+        long own = occupancy[side.ordinal()] & ~kingBit;
+        while (own != 0) {
+            int from = Long.numberOfTrailingZeros(own);
+            long targets = moves(from, side) & allowed;
+            if ((pinned & (1L << from)) != 0) targets &= LINE[king][from];
+            n = addMoves(from, targets, buf, n);
+            own &= own - 1;
+        }
+        return n;
+    }
+
+    //записать все ходы фигур цвета в буфер, возвращает новое количество ходов
+    public int generate(Color active, int[] buf, int n) {
+        long own = occupancy[active.ordinal()];
+        while (own != 0) {
+            int from = Long.numberOfTrailingZeros(own);
+            n = addMoves(from, moves(from, active), buf, n);
+            own &= own - 1;
+        }
+        return n;
+    }
+
+    //записать ходы с клетки по маске целей в буфер
+    public int addMoves(int from, long targets, int[] buf, int n) {
+        int piece = mailbox[from] % 6;
+        while (targets != 0) {
+            int to = Long.numberOfTrailingZeros(targets);
+            int cap = mailbox[to];
+            int flags = piece == PieceType.PAWN.ordinal() && Math.abs(to - from) == 16 ? Move.DOUBLE_PUSH : 0;
+            buf[n++] = Move.of(from, to, piece, cap < 0 ? -1 : cap % 6, flags);
+            targets &= targets - 1;
+        }
+        return n;
+    }
+
+    //ходы фигуры на клетке (пешка считается не ходившей на своей начальной горизонтали)
+    public long moves(int sq, Color active) {
+        int idx = mailbox[sq];
+        if (idx < 0) return 0L;
+        PieceDef def = PieceDef.of(TYPES[idx % 6]);
+        Color col = idx < 6 ? Color.BLACK : Color.WHITE;
+        return switch (def.getKind()) {
+            case SLIDER -> def.attacks(sq, all) & ~occupancy[active.ordinal()];
+            case LEAPER -> def.targets(sq) & ~occupancy[active.ordinal()];
+            case PAWN -> pawnMoves(sq, col, (sq >>> 3) != (col == Color.WHITE ? 1 : 6), active);
+        };
+    }
 }
 
 //Класс Клетка
 class Square {
     private Piece piece; //фигура на клетке
     private Coordinates pos; //координаты клетки
+    private boolean readOnly = false; //представление клетки доски: изменение запрещено
 
     public Square(Coordinates pos) {
         this.pos = pos;
@@ -308,8 +1035,21 @@ class Square {
     //получение координат фигуры
     public Coordinates getPos() { return pos; }
 
+    //запрет изменений клетки и ее фигуры
+    public Square readOnly() {
+        readOnly = true;
+        if (piece != null) piece.readOnly();
+        return this;
+    }
+
+    //проверка, что клетку можно изменять
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Клетка только для чтения: ходы делаются через Board.movePiece");
+    }
+
     //поменять фигуру
     public void setPiece(Piece piece) {
+        checkWritable();
         if (this.piece != null) this.piece.setDead();
         this.piece = piece;
         if (piece != null) piece.setPos(pos);
@@ -319,7 +1059,10 @@ class Square {
     public Piece getPiece() { return piece; }
 
     //убрать фигуру
-    public void removePiece() { piece = null; }
+    public void removePiece() {
+        checkWritable();
+        piece = null;
+    }
 
     //проверить наличие фигуры
     public boolean hasPiece() { return piece != null; }
@@ -335,38 +1078,80 @@ class Square {
 
     //получить доступные для фигуры на клетке ходы
     public List<Coordinates> getMoves(Square[][] board, Color active) {
-        return switch (getPieceType()) {
-            case BISHOP, ROOK, QUEEN -> getContMoves(board, active);
-            case KING, KNIGHT -> getShortMoves(board, active);
+        List<Coordinates> moves = switch (PieceDef.of(getPieceType()).getKind()) {
+            case SLIDER -> getContMoves(board, active);
+            case LEAPER -> getShortMoves(board, active);
             case PAWN -> getPawnMoves(board, active);
         };
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(moves.size());
+        return moves;
+    }
+
+    //получить доступные для фигуры на клетке ходы по битборду
+    public List<Coordinates> getMoves(BitBoard bits, Color active) {
+        long mask = getMoveMask(bits, active);
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(Long.bitCount(mask));
+        return toList(mask);
+    }
+
+    //записать ходы фигуры в буфер упакованных ходов, возвращает новое количество ходов
+    public int getMoves(BitBoard bits, Color active, int[] buf, int n) {
+        long mask = getMoveMask(bits, active);
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(Long.bitCount(mask));
+        return bits.addMoves(index(), mask, buf, n);
+    }
+
+    //получить маску доступных ходов по битборду
+    private long getMoveMask(BitBoard bits, Color active) {
+        return switch (PieceDef.of(getPieceType()).getKind()) {
+            case SLIDER -> getContMoves(bits, active);
+            case LEAPER -> getShortMoves(bits, active);
+            case PAWN -> getPawnMoves(bits, active);
+        };
+    }
+
+    //получить продолжительные ходы по битборду
+    private long getContMoves(BitBoard bits, Color active) {
+        return bits.contMoves(index(), getPieceType(), active);
+    }
+
+    //получить короткие ходы по битборду
+    private long getShortMoves(BitBoard bits, Color active) {
+        return bits.shortMoves(index(), getPieceType(), active);
+    }
+
+    //получить ходы пешки по битборду
+    private long getPawnMoves(BitBoard bits, Color active) {
+        return bits.pawnMoves(index(), getPieceColor(), piece.isMoved(), active);
+    }
+
+    //номер клетки
+    private int index() { return pos.index(); }
+
+    //преобразование маски клеток в список координат
+    private static List<Coordinates> toList(long mask) {
+        List<Coordinates> moves = new ArrayList<>(Long.bitCount(mask));
+        while (mask != 0) {
+            int sq = Long.numberOfTrailingZeros(mask);
+            moves.add(Coordinates.of(sq));
+            mask &= mask - 1;
+        }
+        return moves;
     }
 
     //получить продолжительные ходы
     private List<Coordinates> getContMoves(Square[][] board, Color active) {
         List<Coordinates> moves = new ArrayList<>();
-        List<Coordinates> pattern = getPiecePattern();
-        Coordinates pos = getPos();
+        int sq = getPos().index();
 
-        for (Coordinates move : pattern) {
-            int n = 1;
-            boolean stop = false;
-            while (!stop) {
-                Coordinates tpos = pos.add(move.multiply(n));
-                if (tpos.checkBound()) {
-                    Square target = board[tpos.getX()][tpos.getY()];
-                    if (!target.hasPiece()) {
-                        moves.add(tpos);
-                        n++;
-                    } else if (target.getPieceColor() != active) {
-                        moves.add(tpos);
-                        stop = true;
-                    } else {
-                        stop = true;
-                    }
-                } else {
-                    stop = true;
+        for (int dir : PieceDef.of(getPieceType()).getDirs()) {
+            for (int t : BitBoard.RAY_SQUARES[dir][sq]) {
+                Square target = board[t & 7][t >>> 3];
+                if (target.hasPiece()) {
+                    if (target.getPieceColor() != active) moves.add(target.getPos());
+                    break;
                 }
+                moves.add(target.getPos());
             }
         }
         return moves;
@@ -375,16 +1160,12 @@ class Square {
     //получить короткие ходы
     private List<Coordinates> getShortMoves(Square[][] board, Color active) {
         List<Coordinates> moves = new ArrayList<>();
-        List<Coordinates> pattern = getPiecePattern();
-        Coordinates pos = getPos();
 
-        for (Coordinates move : pattern) {
-            Coordinates tpos = pos.add(move);
-            if (tpos.checkBound()) {
-                Square target = board[tpos.getX()][tpos.getY()];
-                if (!target.hasPiece() || target.getPieceColor() != active) {
-                    moves.add(tpos);
-                }
+        for (long m = PieceDef.of(getPieceType()).targets(getPos().index()); m != 0; m &= m - 1) {
+            int t = Long.numberOfTrailingZeros(m);
+            Square target = board[t & 7][t >>> 3];
+            if (!target.hasPiece() || target.getPieceColor() != active) {
+                moves.add(target.getPos());
             }
         }
         return moves;
@@ -396,25 +1177,19 @@ class Square {
         List<Coordinates> pattern = getPiecePattern();
         Coordinates pos = getPos();
 
+        int dir = getPieceColor() == Color.WHITE ? 1 : -1;
         for (Coordinates move : pattern) {
-            Coordinates tpos, forward;
-            if (getPieceColor() == Color.WHITE) {
-                tpos = pos.add(move);
-                forward = pos.add(new Coordinates(0, 1));
-            } else {
-                tpos = pos.subtract(move);
-                forward = pos.subtract(new Coordinates(0, 1));
-            }
-
-            if (tpos.checkBound()) {
+            int t = Coordinates.offset(pos.index(), move.getX() * dir, move.getY() * dir);
+            if (t >= 0) {
                 if (move.getX() == 0) {
-                    if (!board[forward.getX()][forward.getY()].hasPiece()) {
-                        moves.add(tpos);
+                    int forward = Coordinates.offset(pos.index(), 0, dir);
+                    if (!board[forward & 7][forward >>> 3].hasPiece() && !board[t & 7][t >>> 3].hasPiece()) {
+                        moves.add(Coordinates.of(t));
                     }
                 } else {
-                    Square target = board[tpos.getX()][tpos.getY()];
+                    Square target = board[t & 7][t >>> 3];
                     if (target.hasPiece() && target.getPieceColor() != active) {
-                        moves.add(tpos);
+                        moves.add(target.getPos());
                     }
                 }
             }
@@ -424,8 +1199,12 @@ class Square {
 
     //вывод информации о клетке и фигуре, стоящей на ней
     public void printInfo() {
-        System.out.println("Клетка " + toString(pos));
-        getPiece().printInfo();
+        System.out.print(info());
+    }
+
+    //информация о клетке и фигуре
+    public String info() {
+        return "Клетка " + toString(pos) + "\n" + getPiece().info();
     }
 
     //вывод координат
@@ -434,146 +1213,3166 @@ class Square {
     }
 }
 
-//Класс Доска
-class Board {
-    private Color activeColor = Color.WHITE; //текущий цвет
-    private static final PieceType[][] SCHEME = {
-            {PieceType.ROOK, PieceType.KNIGHT, PieceType.BISHOP, PieceType.QUEEN, PieceType.KING, PieceType.BISHOP, PieceType.KNIGHT, PieceType.ROOK},
-            {PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN},
-            {PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN},
-            {PieceType.ROOK, PieceType.KNIGHT, PieceType.BISHOP, PieceType.KING, PieceType.QUEEN, PieceType.BISHOP, PieceType.KNIGHT, PieceType.ROOK}
-    }; //шаблон заполнения доски
+//Класс Упакованная позиция (фигура - одно short-значение в плоском массиве вместо объектов Square/Piece)
+//Биты фигуры: 0-5 клетка, 6-8 тип, 9 цвет, 10 признак сделанного хода
+final class PackedPosition {
+    private static final PieceType[] TYPES = PieceType.values(); //типы фигур по индексу
+    private static final int MOVED = 1 << 10; //признак сделанного хода
+    private final short[] pieces; //фигуры на доске
+    private final Color active; //цвет, который ходит
+    private final int halfmove; //полуходы с последнего хода пешки или взятия
+    private final int fullmove; //номер хода
+
+    private PackedPosition(short[] pieces, Color active, int halfmove, int fullmove) {
+        this.pieces = pieces;
+        this.active = active;
+        this.halfmove = halfmove;
+        this.fullmove = fullmove;
+    }
+
+    //упаковка одной фигуры
+    public static short encode(int sq, PieceType type, Color col, boolean moved) {
+        return (short) (sq | type.ordinal() << 6 | col.ordinal() << 9 | (moved ? MOVED : 0));
+    }
+
+    //упаковка доски
+    public static PackedPosition of(Board board) {
+        BitBoard bits = board.getBits();
+        short[] buf = new short[Long.bitCount(bits.getAll())];
+        int n = 0;
+        for (long m = bits.getAll(); m != 0; m &= m - 1) {
+            int sq = Long.numberOfTrailingZeros(m);
+            int idx = bits.pieceAt(sq);
+            buf[n++] = encode(sq, BitBoard.type(idx), BitBoard.color(idx), board.isMoved(sq));
+        }
+        return new PackedPosition(buf, board.getActive(), board.getHalfmoveClock(),
+                board.getFullmoveNumber());
+    }
+
+    //распаковка в новую доску
+    public Board toBoard() {
+        return new Board(this);
+    }
+
+    //количество фигур
+    public int size() {
+        return pieces.length;
+    }
+
+    //упакованная фигура с номером i
+    public short get(int i) {
+        return pieces[i];
+    }
+
+    //клетка упакованной фигуры
+    public static int square(short p) {
+        return p & 63;
+    }
+
+    //тип упакованной фигуры
+    public static PieceType type(short p) {
+        return TYPES[p >>> 6 & 7];
+    }
+
+    //цвет упакованной фигуры
+    public static Color color(short p) {
+        return (p & 1 << 9) != 0 ? Color.WHITE : Color.BLACK;
+    }
+
+    //признак сделанного хода
+    public static boolean isMoved(short p) {
+        return (p & MOVED) != 0;
+    }
+
+    //клетка с фигурой номер i (создается по запросу только для чтения, для кода, работающего с объектами)
+    public Square view(int i) {
+        short p = pieces[i];
+        Square sq = new Square(Coordinates.of(square(p) & 7, square(p) >>> 3), type(p), color(p));
+        if (isMoved(p)) sq.getPiece().incMoves();
+        return sq.readOnly();
+    }
+
+    //цвет, который ходит
+    public Color getActive() {
+        return active;
+    }
+
+    //полуходы с последнего хода пешки или взятия
+    public int getHalfmove() {
+        return halfmove;
+    }
+
+    //номер хода
+    public int getFullmove() {
+        return fullmove;
+    }
+}
+
+//Класс Снимок позиции (неизменяемый; горизонтали, не затронутые ходом, общие с предыдущим снимком)
+final class PositionSnapshot {
+    private static final PieceType[] TYPES = PieceType.values(); //типы фигур по индексу
+    private final byte[][] ranks; //горизонтали: индекс фигуры + 1 (0 - пустая клетка)
+    private final Color active; //цвет, который ходит
+    private final long key; //ключ Зобриста
+    private final int ply; //номер полухода (версия снимка)
+
+    private PositionSnapshot(byte[][] ranks, Color active, long key, int ply) {
+        this.ranks = ranks;
+        this.active = active;
+        this.key = key;
+        this.ply = ply;
+    }
+
+    //полный снимок битборда
+    public static PositionSnapshot of(BitBoard bits, Color active, int ply) {
+        byte[][] ranks = new byte[8][8];
+        for (int sq = 0; sq < 64; sq++) ranks[sq >>> 3][sq & 7] = (byte) (bits.pieceAt(sq) + 1);
+        return new PositionSnapshot(ranks, active, bits.getKey(), ply);
+    }
+
+    //снимок после хода: копируются только горизонтали клеток хода
+    public PositionSnapshot after(int move, Color active, long key) {
+        int from = Move.from(move), to = Move.to(move);
+        byte[][] next = ranks.clone();
+        next[from >>> 3] = ranks[from >>> 3].clone();
+        if (to >>> 3 != from >>> 3) next[to >>> 3] = ranks[to >>> 3].clone();
+        next[to >>> 3][to & 7] = next[from >>> 3][from & 7];
+        next[from >>> 3][from & 7] = 0;
+        return new PositionSnapshot(next, active, key, ply + 1);
+    }
+
+    //индекс фигуры на клетке (-1, если клетка пустая)
+    public int pieceAt(int sq) {
+        return ranks[sq >>> 3][sq & 7] - 1;
+    }
+
+    //тип фигуры на клетке (null, если клетка пустая)
+    public PieceType getType(int sq) {
+        int idx = pieceAt(sq);
+        return idx < 0 ? null : TYPES[idx % 6];
+    }
+
+    //цвет фигуры на клетке (null, если клетка пустая)
+    public Color getColor(int sq) {
+        int idx = pieceAt(sq);
+        return idx < 0 ? null : idx >= 6 ? Color.WHITE : Color.BLACK;
+    }
+
+    //цвет, который ходит
+    public Color getActive() {
+        return active;
+    }
+
+    //ключ Зобриста позиции
+    public long getKey() {
+        return key;
+    }
+
+    //номер полухода
+    public int getPly() {
+        return ply;
+    }
+
+    //расстановка и очередь хода в записи FEN
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(72);
+        for (int y = 7; y >= 0; y--) {
+            int empty = 0;
+            for (int x = 0; x < 8; x++) {
+                int idx = ranks[y][x] - 1;
+                if (idx < 0) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append(empty);
+                empty = 0;
+                char c = "kqrbnp".charAt(idx % 6);
+                sb.append(idx >= 6 ? Character.toUpperCase(c) : c);
+            }
+            if (empty > 0) sb.append(empty);
+            if (y > 0) sb.append('/');
+        }
+        return sb.append(active == Color.WHITE ? " w" : " b").toString();
+    }
+}
+
+//Класс Доска
+class Board {
+    public static final int STATE_CHECK = 3; //шах
+    public static final int STATE_WHITE_MATES = 4; //мат, победили белые
+    public static final int STATE_BLACK_MATES = 5; //мат, победили черные
+    public static final int STATE_STALEMATE = 6; //пат
+    private Color activeColor = Color.WHITE; //текущий цвет
+    private static final PieceType[][] SCHEME = {
+            {PieceType.ROOK, PieceType.KNIGHT, PieceType.BISHOP, PieceType.QUEEN, PieceType.KING, PieceType.BISHOP, PieceType.KNIGHT, PieceType.ROOK},
+            {PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN},
+            {PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN, PieceType.PAWN},
+            {PieceType.ROOK, PieceType.KNIGHT, PieceType.BISHOP, PieceType.KING, PieceType.QUEEN, PieceType.BISHOP, PieceType.KNIGHT, PieceType.ROOK}
+    }; //шаблон заполнения доски
+
+    //расстановка хранится только в битборде (индекс фигуры на клетке) и маске ходивших фигур;
+    //объекты Square и Piece создаются по запросу как копии для кода, работающего с объектами
+    private final BitBoard bits = new BitBoard(); //битборд позиции
+    private long moved = 0L; //клетки с фигурами, которые уже ходили
+    private int[] moveBuf; //буфер ходов для проверок (создается при первой проверке)
+    private BoardRenderer renderer; //отрисовщик доски
+    private static final int[] NO_UNDO = new int[0]; //пустой стек отмены (растет при первом ходе)
+    private static final int UNDO_FROM_MOVED = 1 << 30; //стек отмены: фигура хода уже ходила
+    private static final int UNDO_TO_MOVED = 1 << 31; //стек отмены: взятая фигура уже ходила
+    private int[] undoMoves = NO_UNDO; //стек отмены: сделанные ходы
+    private int[] undoInfo = NO_UNDO; //стек отмены: счетчик полуходов до хода и признаки ходивших фигур
+    private int undoSize = 0; //размер стека отмены
+    private long[] attacksFrom; //клетки, атакуемые фигурой на клетке (создаются при первом запросе карт атак)
+    private final long[] attackMaps = new long[2]; //клетки, атакуемые каждым цветом
+    private long attackKey; //ключ позиции, для которой построены карты атак
+    private boolean attacksValid = false; //карты атак построены
+    private int halfmoveClock = 0; //полуходы с последнего хода пешки или взятия
+    private int plyBase = 0; //номер полухода, с которого начата доска
+    //последний опубликованный снимок (читается из других потоков без блокировок; обновляется в movePiece)
+    private volatile PositionSnapshot snapshot;
+
+    public Board() {
+        initBoard();
+        publish();
+    }
+
+    //копия доски (без стека отмены)
+    public Board(Board other) {
+        copyFrom(other);
+    }
+
+    //перезапись доски позицией другой доски (без стека отмены; буферы этой доски сохраняются)
+    public void copyFrom(Board other) {
+        clear();
+        activeColor = other.activeColor;
+        for (int sq = 0; sq < 64; sq++) {
+            int idx = other.bits.pieceAt(sq);
+            if (idx >= 0) bits.put(sq, BitBoard.type(idx), BitBoard.color(idx));
+        }
+        if (activeColor == Color.BLACK) bits.toggleSide();
+        moved = other.moved;
+        halfmoveClock = other.halfmoveClock;
+        plyBase = other.plyBase + other.undoSize;
+        publish();
+    }
+
+    //доска из упакованной позиции
+    public Board(PackedPosition packed) {
+        for (int i = 0; i < packed.size(); i++) {
+            short p = packed.get(i);
+            int sq = PackedPosition.square(p);
+            bits.put(sq, PackedPosition.type(p), PackedPosition.color(p));
+            if (PackedPosition.isMoved(p)) moved |= 1L << sq;
+        }
+        setActive(packed.getActive());
+        setClocks(packed.getHalfmove(), packed.getFullmove());
+        publish();
+    }
+
+    //очистка доски (без фигур, ход белых)
+    public void clear() {
+        bits.clear();
+        moved = 0L;
+        activeColor = Color.WHITE;
+        attacksValid = false;
+        undoSize = 0;
+        halfmoveClock = 0;
+        plyBase = 0;
+    }
+
+    //отмена всех сделанных ходов (дешевый возврат к позиции, с которой начата доска)
+    public void rewind() {
+        while (undoSize > 0) unmakeMove();
+        publish();
+    }
+
+    //возврат к начальной позиции
+    public void reset() {
+        clear();
+        initBoard();
+        publish();
+    }
+
+    //фигура начальной расстановки цвета на клетке (null, если клетка у этого цвета пустая)
+    public static PieceType initialPiece(int x, int y, Color col) {
+        if (col == Color.WHITE) return y <= 1 ? SCHEME[y][x] : null;
+        return y >= 6 ? SCHEME[y - 4][x] : null;
+    }
+
+    //начальная клетка короля цвета
+    public Coordinates kingHome(Color col) {
+        int y = col == Color.WHITE ? 0 : 7;
+        for (int x = 0; x < 8; x++) {
+            if (initialPiece(x, y, col) == PieceType.KING) return Coordinates.of(x, y);
+        }
+        return Coordinates.NONE;
+    }
+
+    //установка счетчиков ходов из FEN
+    public void setClocks(int halfmove, int fullmove) {
+        halfmoveClock = halfmove;
+        plyBase = Math.max(0, fullmove - 1) * 2 + (activeColor == Color.BLACK ? 1 : 0) - undoSize;
+    }
+
+    //полуходы с последнего хода пешки или взятия
+    public int getHalfmoveClock() {
+        return halfmoveClock;
+    }
+
+    //номер хода
+    public int getFullmoveNumber() {
+        return (plyBase + undoSize) / 2 + 1;
+    }
+
+    //поставить фигуру на клетку с заданным количеством сделанных ходов (хранится только признак хода)
+    public void place(Coordinates pos, PieceType type, Color col, int moves) {
+        int sq = pos.index();
+        bits.remove(sq);
+        bits.put(sq, type, col);
+        moved = moves > 0 ? moved | 1L << sq : moved & ~(1L << sq);
+    }
+
+    //проверка, ходила ли фигура на клетке
+    public boolean isMoved(int sq) {
+        return (moved >>> sq & 1) != 0;
+    }
+
+    //публикация снимка текущей позиции (после расстановки фигур не через movePiece)
+    public void publish() {
+        snapshot = PositionSnapshot.of(bits, activeColor, plyBase + undoSize);
+    }
+
+    //упакованная копия позиции (для хранения большого числа позиций)
+    public PackedPosition pack() {
+        return PackedPosition.of(this);
+    }
+
+    //последний опубликованный снимок позиции
+    public PositionSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    //установка текущего цвета
+    public void setActive(Color col) {
+        if (col != activeColor) changeActive();
+    }
+
+    //инициализация доски
+    private void initBoard() {
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                if (y <= 1) {
+                    bits.put(BitBoard.square(x, y), SCHEME[y][x], Color.WHITE);
+                } else if (y >= 6) {
+                    bits.put(BitBoard.square(x, y), SCHEME[y - 4][x], Color.BLACK);
+                }
+            }
+        }
+    }
+
+    //вывод доски
+    public void drawBoard() {
+        long start = Metrics.start();
+        Metrics.RenderEvent event = Metrics.ENABLED ? new Metrics.RenderEvent() : null;
+        if (event != null) event.begin();
+        renderer().begin().appendBoard(bits, 0L, false).flush(System.out);
+        if (Metrics.ENABLED) {
+            Metrics.RENDER_TIME.record(System.nanoTime() - start);
+            event.commit();
+        }
+    }
+
+    //отображение ходов фигуры текущего цвета (false, если фигуры нет, она чужая или ей некуда ходить)
+    public boolean drawMoves(Coordinates pos) {
+        if (!sqHasPiece(pos) || !checkOwner(pos)) return false;
+        long marks = getMoveMask(pos);
+        if (marks == 0) return false;
+        renderer().begin().appendBoard(bits, marks, true).append(getSquare(pos).info()).flush(System.out);
+        return true;
+    }
+
+    //установка отрисовщика (общего с экраном игры, чтобы вывод доски не сбивал перерисовку по разнице)
+    public void setRenderer(BoardRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    //отрисовщик доски (создается при первом выводе)
+    private BoardRenderer renderer() {
+        if (renderer == null) renderer = new BoardRenderer(false);
+        return renderer;
+    }
+
+    //получение ходов фигуры по координатам (легальных для фигуры текущего цвета)
+    public List<Coordinates> getMoves(Coordinates pos) {
+        Square sq = getSquare(pos);
+        if (!sq.hasPiece() || sq.getPieceColor() != activeColor) return sq.getMoves(bits, activeColor);
+        int[] moveBuf = moveBuf();
+        int n = bits.generateLegal(activeColor, moveBuf, 0);
+        List<Coordinates> moves = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (Move.from(moveBuf[i]) == pos.index()) moves.add(Coordinates.of(Move.to(moveBuf[i])));
+        }
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(moves.size());
+        return moves;
+    }
+
+    //маска клеток, куда может пойти фигура (легальные ходы для фигуры текущего цвета)
+    public long getMoveMask(Coordinates pos) {
+        Square sq = getSquare(pos);
+        if (!sq.hasPiece()) return 0L;
+        if (sq.getPieceColor() != activeColor) {
+            long mask = 0L;
+            for (Coordinates m : sq.getMoves(bits, activeColor)) mask |= 1L << m.index();
+            return mask;
+        }
+        int[] moveBuf = moveBuf();
+        int n = bits.generateLegal(activeColor, moveBuf, 0);
+        long mask = 0L;
+        for (int i = 0; i < n; i++) {
+            if (Move.from(moveBuf[i]) == pos.index()) mask |= 1L << Move.to(moveBuf[i]);
+        }
+        return mask;
+    }
+
+    //запись легальных ходов текущего цвета в буфер упакованных ходов, возвращает количество ходов
+    public int getLegalMoves(int[] buf) {
+        int n = bits.generateLegal(activeColor, buf, 0);
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(n);
+        return n;
+    }
+
+    //проверка шаха текущему цвету
+    public boolean isInCheck() {
+        return bits.isInCheck(activeColor);
+    }
+
+    //состояние игры для текущего цвета: шах, мат, пат или 0 (ходы генерируются для проверки и в счетчик не входят)
+    public int getState() {
+        boolean check = isInCheck();
+        if (bits.generateLegal(activeColor, moveBuf(), 0) > 0) return check ? STATE_CHECK : 0;
+        if (!check) return STATE_STALEMATE;
+        return activeColor == Color.WHITE ? STATE_BLACK_MATES : STATE_WHITE_MATES;
+    }
+
+    //запись всех ходов текущего цвета в буфер упакованных ходов, возвращает количество ходов
+    public int getMoves(int[] buf) {
+        int n = bits.generate(activeColor, buf, 0);
+        if (Metrics.ENABLED) Metrics.MOVES_GENERATED.add(n);
+        return n;
+    }
+
+    //получение битборда позиции
+    public BitBoard getBits() {
+        return bits;
+    }
+
+    //клетка по координатам (представление только для чтения: изменение бросает UnsupportedOperationException)
+    public Square getSquare(Coordinates pos) {
+        int idx = bits.pieceAt(pos.index());
+        if (idx < 0) return new Square(pos).readOnly();
+        Square sq = new Square(pos, BitBoard.type(idx), BitBoard.color(idx));
+        if (isMoved(pos.index())) sq.getPiece().incMoves();
+        return sq.readOnly();
+    }
+
+    //проверка наличия фигуры на клетке
+    public boolean sqHasPiece(Coordinates pos) {
+        return bits.pieceAt(pos.index()) >= 0;
+    }
+
+    //фигура на клетке (только для чтения, null - клетка пустая)
+    public Piece getSqPiece(Coordinates pos) {
+        return getSquare(pos).getPiece();
+    }
+
+    //смена текущего цвета
+    public void changeActive() {
+        activeColor = (activeColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
+        bits.toggleSide();
+    }
+
+    //получение ключа Зобриста позиции
+    public long getKey() {
+        return bits.getKey();
+    }
+
+    //получение текущего цвета
+    public Color getActive() {
+        return activeColor;
+    }
+
+    //проверка легальности хода фигурой текущего цвета
+    public boolean isLegal(Coordinates c1, Coordinates c2) {
+        return sqHasPiece(c1) && checkOwner(c1) && (getMoveMask(c1) >>> c2.index() & 1) != 0;
+    }
+
+    //проверить возможность сдвинуть выбранную фигуру
+    public boolean checkOwner(Coordinates pos) {
+        int idx = bits.pieceAt(pos.index());
+        return idx >= 0 && BitBoard.color(idx) == getActive();
+    }
+
+    //буфер ходов для проверок
+    private int[] moveBuf() {
+        if (moveBuf == null) moveBuf = new int[Move.MAX_MOVES];
+        return moveBuf;
+    }
+
+    //упакованный ход с клетки на клетку
+    public int toMove(int from, int to) {
+        int[] buf = moveBuf();
+        bits.addMoves(from, 1L << to, buf, 0);
+        return buf[0];
+    }
+
+    //сделать ход без проверки (с возможностью отмены)
+    public void makeMove(int move) {
+        int from = Move.from(move), to = Move.to(move);
+        if (undoSize == undoMoves.length) {
+            undoMoves = Arrays.copyOf(undoMoves, Math.max(32, undoSize * 2));
+            undoInfo = Arrays.copyOf(undoInfo, undoMoves.length);
+        }
+        undoMoves[undoSize] = move;
+        undoInfo[undoSize] = halfmoveClock | (isMoved(from) ? UNDO_FROM_MOVED : 0) | (isMoved(to) ? UNDO_TO_MOVED : 0);
+        undoSize++;
+        halfmoveClock = Move.isCapture(move) || Move.piece(move) == PieceType.PAWN ? 0 : halfmoveClock + 1;
+
+        bits.remove(to);
+        bits.remove(from);
+        bits.put(to, Move.piece(move), activeColor);
+        moved = (moved & ~(1L << from)) | 1L << to;
+        changeActive();
+    }
+
+    //отменить последний сделанный ход
+    public void unmakeMove() {
+        if (undoSize == 0) throw new IllegalStateException("Нет ходов для отмены");
+        undoSize--;
+        int move = undoMoves[undoSize];
+        int info = undoInfo[undoSize];
+        halfmoveClock = info & (UNDO_FROM_MOVED - 1);
+        int from = Move.from(move), to = Move.to(move);
+
+        changeActive();
+        bits.remove(to);
+        bits.put(from, Move.piece(move), activeColor);
+        PieceType captured = Move.captured(move);
+        if (captured != null) bits.put(to, captured, BitBoard.opposite(activeColor));
+        moved &= ~(1L << from | 1L << to);
+        if ((info & UNDO_FROM_MOVED) != 0) moved |= 1L << from;
+        if ((info & UNDO_TO_MOVED) != 0) moved |= 1L << to;
+        if (snapshot.getPly() > plyBase + undoSize) publish(); //отменен опубликованный ход
+    }
+
+    //количество ходов, которые можно отменить
+    public int getUndoSize() {
+        return undoSize;
+    }
+
+    //ход с номером i из истории партии
+    public int getHistoryMove(int i) {
+        return undoMoves[i];
+    }
+
+    //передвижение фигуры
+    public int movePiece(Coordinates c1, Coordinates c2) {
+        long start = Metrics.start();
+        Metrics.MoveEvent event = Metrics.ENABLED ? new Metrics.MoveEvent() : null;
+        if (event != null) event.begin();
+        int state = doMovePiece(c1, c2);
+        if (Metrics.ENABLED) {
+            Metrics.MOVE_TIME.record(System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.move = Move.toString(c1.index() | c2.index() << 6);
+                event.state = state;
+                event.commit();
+            }
+        }
+        return state;
+    }
+
+    //карта клеток, атакуемых цветом (перестраивается, если позиция изменилась не через movePiece)
+    public long getAttackMap(Color col) {
+        if (!attacksValid || attackKey != bits.getKey()) rebuildAttacks();
+        return attackMaps[col.ordinal()];
+    }
+
+    //проверка атаки клетки цветом
+    public boolean isAttacked(Coordinates pos, Color by) {
+        return (getAttackMap(by) & (1L << pos.index())) != 0;
+    }
+
+    //полный пересчет карт атак
+    private void rebuildAttacks() {
+        if (attacksFrom == null) attacksFrom = new long[64];
+        for (int sq = 0; sq < 64; sq++) attacksFrom[sq] = bits.attacksFrom(sq);
+        mergeAttacks();
+    }
+
+    //сборка карт цветов из атак отдельных фигур
+    private void mergeAttacks() {
+        for (Color col : Color.values()) {
+            long map = 0L;
+            for (long m = bits.getOccupancy(col); m != 0; m &= m - 1) map |= attacksFrom[Long.numberOfTrailingZeros(m)];
+            attackMaps[col.ordinal()] = map;
+        }
+        attackKey = bits.getKey();
+        attacksValid = true;
+    }
+
+    //обновление карт после хода: пересчитываются клетки хода и дальнобойные фигуры, атаковавшие их
+    //(карты, которые еще ни разу не запрашивались, не ведутся)
+    private void updateAttacks(int move, long keyBefore) {
+        if (!attacksValid) return;
+        if (attackKey != keyBefore) {
+            rebuildAttacks();
+            return;
+        }
+        long touched = (1L << Move.from(move)) | (1L << Move.to(move));
+        long affected = touched;
+        long sliders = 0L;
+        for (Color col : Color.values()) {
+            sliders |= bits.getPieces(PieceType.QUEEN, col) | bits.getPieces(PieceType.ROOK, col)
+                    | bits.getPieces(PieceType.BISHOP, col);
+        }
+        for (long m = sliders; m != 0; m &= m - 1) {
+            int sq = Long.numberOfTrailingZeros(m);
+            if ((attacksFrom[sq] & touched) != 0) affected |= 1L << sq;
+        }
+        for (long m = affected; m != 0; m &= m - 1) {
+            int sq = Long.numberOfTrailingZeros(m);
+            attacksFrom[sq] = bits.attacksFrom(sq);
+        }
+        mergeAttacks();
+    }
+
+    //передвижение фигуры без замеров
+    private int doMovePiece(Coordinates c1, Coordinates c2) {
+        int state = 0;
+        if (!sqHasPiece(c1)) {
+            if (Metrics.ENABLED) Metrics.ILLEGAL_MOVES.increment();
+            renderer().print(System.out, "Поле пустое\n");
+            return state;
+        }
+        if (!checkOwner(c1)) {
+            if (Metrics.ENABLED) Metrics.ILLEGAL_MOVES.increment();
+            renderer().print(System.out, "Сейчас ход другого цвета\n");
+            return state;
+        }
+
+        if ((getMoveMask(c1) >>> c2.index() & 1) != 0) {
+            long keyBefore = bits.getKey();
+            int move = toMove(c1.index(), c2.index());
+            makeMove(move);
+            updateAttacks(move, keyBefore);
+            PositionSnapshot last = snapshot;
+            if (last.getKey() == keyBefore && last.getPly() == plyBase + undoSize - 1) {
+                snapshot = last.after(move, activeColor, bits.getKey());
+            } else {
+                publish(); //позиция менялась в обход movePiece
+            }
+            if (Metrics.ENABLED) Metrics.MOVES_MADE.increment();
+            state = getState();
+        } else {
+            if (Metrics.ENABLED) Metrics.ILLEGAL_MOVES.increment();
+            renderer().print(System.out, "Фигура не может сюда пойти\n");
+        }
+        return state;
+    }
+}
+
+//Класс Оценка позиции (материал и таблицы клеток с плавным переходом от миттельшпиля к эндшпилю)
+//Суммы по фигурам ведет BitBoard в put/remove, здесь добавляется только структура пешек из кэша
+class Evaluator {
+    public static final int MAX_PHASE = 24; //фаза полной доски (конь и слон - 1, ладья - 2, ферзь - 4)
+    public static final int[][] MG = new int[12][64]; //материал + клетка в миттельшпиле по индексу фигуры (черные со знаком минус)
+    public static final int[][] EG = new int[12][64]; //материал + клетка в эндшпиле
+    public static final int[] PHASE = {0, 4, 2, 1, 1, 0}; //вклад типа фигуры в фазу
+    private static final int[] EG_VALUES = {0, 950, 520, 310, 290, 130}; //материал в эндшпиле
+    private static final int PAWN_CACHE_BITS = 14; //размер кэша структуры пешек (степень двойки)
+
+    //таблицы клеток для белых, первая строка - восьмая горизонталь
+    private static final int[][] PST_MG = {
+            { //король
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -20, -30, -30, -40, -40, -30, -30, -20,
+                    -10, -20, -20, -20, -20, -20, -20, -10,
+                    20, 20, 0, 0, 0, 0, 20, 20,
+                    20, 30, 10, 0, 0, 10, 30, 20},
+            { //ферзь
+                    -20, -10, -10, -5, -5, -10, -10, -20,
+                    -10, 0, 0, 0, 0, 0, 0, -10,
+                    -10, 0, 5, 5, 5, 5, 0, -10,
+                    -5, 0, 5, 5, 5, 5, 0, -5,
+                    0, 0, 5, 5, 5, 5, 0, -5,
+                    -10, 5, 5, 5, 5, 5, 0, -10,
+                    -10, 0, 5, 0, 0, 0, 0, -10,
+                    -20, -10, -10, -5, -5, -10, -10, -20},
+            { //ладья
+                    0, 0, 0, 0, 0, 0, 0, 0,
+                    5, 10, 10, 10, 10, 10, 10, 5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    0, 0, 0, 5, 5, 0, 0, 0},
+            { //слон
+                    -20, -10, -10, -10, -10, -10, -10, -20,
+                    -10, 0, 0, 0, 0, 0, 0, -10,
+                    -10, 0, 5, 10, 10, 5, 0, -10,
+                    -10, 5, 5, 10, 10, 5, 5, -10,
+                    -10, 0, 10, 10, 10, 10, 0, -10,
+                    -10, 10, 10, 10, 10, 10, 10, -10,
+                    -10, 5, 0, 0, 0, 0, 5, -10,
+                    -20, -10, -10, -10, -10, -10, -10, -20},
+            { //конь
+                    -50, -40, -30, -30, -30, -30, -40, -50,
+                    -40, -20, 0, 0, 0, 0, -20, -40,
+                    -30, 0, 10, 15, 15, 10, 0, -30,
+                    -30, 5, 15, 20, 20, 15, 5, -30,
+                    -30, 0, 15, 20, 20, 15, 0, -30,
+                    -30, 5, 10, 15, 15, 10, 5, -30,
+                    -40, -20, 0, 5, 5, 0, -20, -40,
+                    -50, -40, -30, -30, -30, -30, -40, -50},
+            { //пешка (превращения нет, поэтому последняя горизонталь не поощряется)
+                    0, 0, 0, 0, 0, 0, 0, 0,
+                    20, 20, 20, 20, 20, 20, 20, 20,
+                    10, 10, 20, 30, 30, 20, 10, 10,
+                    5, 5, 10, 25, 25, 10, 5, 5,
+                    0, 0, 0, 20, 20, 0, 0, 0,
+                    5, -5, -10, 0, 0, -10, -5, 5,
+                    5, 10, 10, -20, -20, 10, 10, 5,
+                    0, 0, 0, 0, 0, 0, 0, 0}
+    };
+
+    //король в эндшпиле стремится в центр
+    private static final int[] KING_EG = {
+            -50, -40, -30, -20, -20, -30, -40, -50,
+            -30, -20, -10, 0, 0, -10, -20, -30,
+            -30, -10, 20, 30, 30, 20, -10, -30,
+            -30, -10, 30, 40, 40, 30, -10, -30,
+            -30, -10, 30, 40, 40, 30, -10, -30,
+            -30, -10, 20, 30, 30, 20, -10, -30,
+            -30, -30, 0, 0, 0, 0, -30, -30,
+            -50, -30, -30, -30, -30, -30, -30, -50};
+
+    static {
+        for (PieceType t : PieceType.values()) {
+            int type = t.ordinal();
+            int mgValue = t == PieceType.KING ? 0 : t.getValue();
+            for (int sq = 0; sq < 64; sq++) {
+                int white = (7 - (sq >>> 3)) * 8 + (sq & 7); //клетка белых в таблице
+                int black = sq; //для черных таблица отражается по вертикали
+                int egWhite = t == PieceType.KING ? KING_EG[white] : PST_MG[type][white];
+                int egBlack = t == PieceType.KING ? KING_EG[black] : PST_MG[type][black];
+                MG[BitBoard.index(t, Color.WHITE)][sq] = mgValue + PST_MG[type][white];
+                EG[BitBoard.index(t, Color.WHITE)][sq] = EG_VALUES[type] + egWhite;
+                MG[BitBoard.index(t, Color.BLACK)][sq] = -(mgValue + PST_MG[type][black]);
+                EG[BitBoard.index(t, Color.BLACK)][sq] = -(EG_VALUES[type] + egBlack);
+            }
+        }
+    }
+
+    private final long[] pawnKeys = new long[1 << PAWN_CACHE_BITS]; //ключи пешечной структуры в кэше
+    private final long[] pawnScores = new long[1 << PAWN_CACHE_BITS]; //оценки (миттельшпиль в старших 32 битах)
+    private long pawnHits; //попадания в кэш
+    private long pawnProbes; //обращения к кэшу
+
+    //оценка с точки зрения ходящей стороны
+    public int evaluate(BitBoard bits, Color active) {
+        long pawns = pawnScore(bits);
+        int mg = bits.getMgScore() + (int) (pawns >> 32);
+        int eg = bits.getEgScore() + (int) pawns;
+        int phase = Math.min(bits.getPhase(), MAX_PHASE);
+        int score = (mg * phase + eg * (MAX_PHASE - phase)) / MAX_PHASE;
+        return active == Color.WHITE ? score : -score;
+    }
+
+    //оценка структуры пешек из кэша по ключу только пешек
+    private long pawnScore(BitBoard bits) {
+        long key = bits.getPawnKey();
+        int slot = (int) (key >>> (64 - PAWN_CACHE_BITS));
+        pawnProbes++;
+        if (pawnKeys[slot] == key && key != 0) {
+            pawnHits++;
+            return pawnScores[slot];
+        }
+        long white = bits.getPieces(PieceType.PAWN, Color.WHITE);
+        long black = bits.getPieces(PieceType.PAWN, Color.BLACK);
+        int mg = 0, eg = 0;
+        for (int x = 0; x < 8; x++) {
+            long file = 0x0101010101010101L << x;
+            long adjacent = (x > 0 ? file >>> 1 : 0) | (x < 7 ? file << 1 : 0);
+            int w = Long.bitCount(white & file), b = Long.bitCount(black & file);
+            if (w > 1) { mg -= 10 * (w - 1); eg -= 20 * (w - 1); }
+            if (b > 1) { mg += 10 * (b - 1); eg += 20 * (b - 1); }
+            if (w > 0 && (white & adjacent) == 0) { mg -= 10 * w; eg -= 15 * w; }
+            if (b > 0 && (black & adjacent) == 0) { mg += 10 * b; eg += 15 * b; }
+        }
+        long packed = ((long) mg << 32) | (eg & 0xFFFFFFFFL);
+        pawnKeys[slot] = key;
+        pawnScores[slot] = packed;
+        return packed;
+    }
+
+    //доля попаданий в кэш структуры пешек
+    public double getPawnHitRate() {
+        return pawnProbes == 0 ? 0 : (double) pawnHits / pawnProbes;
+    }
+}
+
+//Класс Таблица транспозиций (без блокировок, проверка записи через XOR ключа и данных)
+class TranspositionTable {
+    public static final int EXACT = 0; //точная оценка
+    public static final int LOWER = 1; //нижняя граница
+    public static final int UPPER = 2; //верхняя граница
+    private static final long VALID = 1L << 63; //признак заполненной записи
+
+    private final long[] keys; //ключи, сложенные по XOR с данными
+    private final long[] data; //упакованные данные записей
+    private final int bucketMask; //маска номера корзины (по 2 записи)
+    private volatile int generation = 0; //поколение поиска
+
+    public TranspositionTable(int sizeMb) {
+        int entries = Integer.highestOneBit(Math.max(2, (int) Math.min(1 << 30, (long) sizeMb * 1024 * 1024 / 16)));
+        keys = new long[entries];
+        data = new long[entries];
+        bucketMask = entries / 2 - 1;
+    }
+
+    //начало нового поиска (записи старых поколений вытесняются первыми)
+    public void newSearch() { generation = (generation + 1) & 0xFF; }
+
+    //очистка таблицы
+    public void clear() {
+        Arrays.fill(keys, 0L);
+        Arrays.fill(data, 0L);
+    }
+
+    //поиск записи по ключу (0, если записи нет)
+    public long probe(long key) {
+        int i = ((int) key & bucketMask) * 2;
+        for (int j = i; j < i + 2; j++) {
+            long d = data[j];
+            if (d != 0 && (keys[j] ^ d) == key) return d;
+        }
+        return 0L;
+    }
+
+    //сохранение записи: та же позиция или менее ценная запись корзины замещается
+    public void store(long key, int move, int score, int depth, int bound) {
+        int i = ((int) key & bucketMask) * 2;
+        int gen = generation;
+        int slot = -1;
+        for (int j = i; j < i + 2; j++) {
+            long d = data[j];
+            if (d != 0 && (keys[j] ^ d) == key) {
+                if (move == Move.NONE) move = move(d);
+                slot = j;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = worth(data[i], gen) <= worth(data[i + 1], gen) ? i : i + 1;
+        }
+        long d = VALID | (move & 0xFFFFFL) | ((long) (score + 32768) << 20)
+                | ((long) Math.min(depth, 255) << 36) | ((long) bound << 44) | ((long) gen << 46);
+        data[slot] = d;
+        keys[slot] = key ^ d;
+    }
+
+    //ценность записи для замещения
+    private static int worth(long d, int gen) {
+        if (d == 0) return -1000;
+        return depth(d) - (generation(d) == gen ? 0 : 256);
+    }
+
+    //ход из записи
+    public static int move(long d) { return (int) (d & 0xFFFFF); }
+
+    //оценка из записи
+    public static int score(long d) { return (int) ((d >>> 20) & 0xFFFF) - 32768; }
+
+    //глубина из записи
+    public static int depth(long d) { return (int) ((d >>> 36) & 0xFF); }
+
+    //тип границы из записи
+    public static int bound(long d) { return (int) ((d >>> 44) & 3); }
+
+    //поколение из записи
+    private static int generation(long d) { return (int) ((d >>> 46) & 0xFF); }
+}
+
+//Класс Движок (negamax с альфа-бета отсечением и итеративным углублением)
+class Engine {
+    public static final int MATE = 30000; //оценка мата
+    private static final int INF = 32000; //бесконечность
+    private static final int MAX_PLY = 64; //максимальная глубина от корня
+    //граница оценок мата: мат в поиске (до MAX_PLY) или по таблицам эндшпиля (глубина узла + до Tablebase.MAX_PLIES)
+    private static final int MATE_BOUND = MATE - MAX_PLY - Tablebase.MAX_PLIES;
+    private static final int[] VALUES = new int[6]; //ценность фигур по индексу типа
+
+    static {
+        for (PieceType t : PieceType.values()) VALUES[t.ordinal()] = t.getValue();
+    }
+
+    private final Board board; //доска, на которой ведется поиск
+    private final TranspositionTable tt; //таблица транспозиций
+    private final int[][] moveBufs = new int[MAX_PLY + 1][Move.MAX_MOVES]; //буферы ходов по глубине
+    private final int[][] scoreBufs = new int[MAX_PLY + 1][Move.MAX_MOVES]; //оценки упорядочивания ходов
+    private final int[][] killers = new int[MAX_PLY + 1][2]; //ходы-убийцы
+    private final int[][] history = new int[2][64 * 64]; //эвристика истории по цвету и ходу
+    private long nodes; //количество узлов
+    private long maxNodes; //ограничение по узлам
+    private long deadline; //ограничение по времени (System.nanoTime)
+    private boolean stopped; //признак остановки поиска
+    private final AtomicBoolean stopSignal; //внешний сигнал остановки (общий для потоков)
+    private final boolean ownsSignal; //сигнал принадлежит только этому движку
+    private int startDepth = 1; //начальная глубина итераций
+    private int rootBest; //лучший ход корня в текущей итерации
+    private int bestMove; //лучший ход последней завершенной итерации
+    private int bestScore; //оценка лучшего хода
+    private int completedDepth; //глубина последней завершенной итерации
+    private Tablebases tablebases; //таблицы эндшпиля (могут отсутствовать)
+    private final Evaluator evaluator = new Evaluator(); //оценка позиции с кэшем пешек
+
+    public Engine(Board board, TranspositionTable tt) {
+        this(board, tt, new AtomicBoolean(false), true);
+    }
+
+    public Engine(Board board, TranspositionTable tt, AtomicBoolean stopSignal) {
+        this(board, tt, stopSignal, false);
+    }
+
+    private Engine(Board board, TranspositionTable tt, AtomicBoolean stopSignal, boolean ownsSignal) {
+        this.board = board;
+        this.tt = tt;
+        this.stopSignal = stopSignal;
+        this.ownsSignal = ownsSignal;
+    }
+
+    //установка начальной глубины (разнообразие потоков параллельного поиска)
+    public void setStartDepth(int depth) { startDepth = Math.max(1, depth); }
+
+    //установка таблиц эндшпиля
+    public void setTablebases(Tablebases tablebases) { this.tablebases = tablebases; }
+
+    //подготовка к новой партии: очистка таблицы транспозиций и эвристики истории (поиск не зависит от прошлых партий)
+    public void newGame() {
+        tt.clear();
+        for (int[] h : history) Arrays.fill(h, 0);
+    }
+
+    //поиск лучшего хода с ограничениями глубины, узлов и времени (0 - без ограничения)
+    public int search(int maxDepth, long maxNodes, long timeMillis) {
+        this.nodes = 0;
+        this.stopped = false;
+        if (ownsSignal) stopSignal.set(false);
+        this.maxNodes = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+        this.deadline = timeMillis > 0 ? System.nanoTime() + timeMillis * 1_000_000L : Long.MAX_VALUE;
+        this.completedDepth = 0;
+        this.bestScore = 0;
+        if (ownsSignal) tt.newSearch(); //у общей таблицы поколение меняет ParallelSearch (один раз на поиск)
+        for (int[] k : killers) Arrays.fill(k, Move.NONE);
+        for (int[] h : history) {
+            for (int i = 0; i < h.length; i++) h[i] >>= 1;
+        }
+
+        if (tablebases != null) {
+            int value = tablebases.probe(board.getBits(), board.getActive());
+            if (value != Tablebases.NONE) {
+                bestScore = Tablebases.score(value, 0);
+                bestMove = tablebases.bestMove(board, moveBufs[0]);
+                return bestMove;
+            }
+        }
+
+        int n = board.getLegalMoves(moveBufs[0]);
+        bestMove = n > 0 ? moveBufs[0][0] : Move.NONE;
+        if (n <= 1) return bestMove;
+
+        int depthLimit = Math.min(maxDepth > 0 ? maxDepth : MAX_PLY, MAX_PLY);
+        for (int depth = Math.min(startDepth, depthLimit); depth <= depthLimit; depth++) {
+            rootBest = Move.NONE;
+            int score = negamax(depth, -INF, INF, 0);
+            if (stopped) break;
+            bestMove = rootBest;
+            bestScore = score;
+            completedDepth = depth;
+            if (Math.abs(score) >= MATE_BOUND) break;
+        }
+        return bestMove;
+    }
+
+    //остановка поиска извне
+    public void stop() { stopSignal.set(true); }
+
+    //количество узлов последнего поиска
+    public long getNodes() { return nodes; }
+
+    //оценка лучшего хода с точки зрения стороны, делающей ход
+    public int getBestScore() { return bestScore; }
+
+    //глубина последней завершенной итерации
+    public int getCompletedDepth() { return completedDepth; }
+
+    //проверка ограничений по узлам и времени
+    private void checkLimits() {
+        if (nodes >= maxNodes || System.nanoTime() >= deadline || stopSignal.get()) stopped = true;
+    }
+
+    //перевод оценки мата в запись таблицы (относительно узла)
+    private static int toTT(int score, int ply) {
+        if (score >= MATE_BOUND) return score + ply;
+        if (score <= -MATE_BOUND) return score - ply;
+        return score;
+    }
+
+    //перевод оценки мата из записи таблицы (относительно корня)
+    private static int fromTT(int score, int ply) {
+        if (score >= MATE_BOUND) return score - ply;
+        if (score <= -MATE_BOUND) return score + ply;
+        return score;
+    }
+
+    //поиск negamax с альфа-бета отсечением
+    private int negamax(int depth, int alpha, int beta, int ply) {
+        if ((++nodes & 1023) == 0) checkLimits();
+        if (stopped) return 0;
+        if (tablebases != null && ply > 0 && Long.bitCount(board.getBits().getAll()) <= 3) {
+            int value = tablebases.probe(board.getBits(), board.getActive());
+            if (value != Tablebases.NONE) return Tablebases.score(value, ply);
+        }
+        if (depth <= 0 || ply >= MAX_PLY) return quiesce(alpha, beta, ply);
+
+        long key = board.getKey();
+        int ttMove = Move.NONE;
+        long entry = tt.probe(key);
+        if (entry != 0) {
+            ttMove = TranspositionTable.move(entry);
+            if (ply > 0 && TranspositionTable.depth(entry) >= depth) {
+                int score = fromTT(TranspositionTable.score(entry), ply);
+                int bound = TranspositionTable.bound(entry);
+                if (bound == TranspositionTable.EXACT
+                        || (bound == TranspositionTable.LOWER && score >= beta)
+                        || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                    return score;
+                }
+            }
+        }
+
+        int[] moves = moveBufs[ply];
+        int n = board.getLegalMoves(moves);
+        if (n == 0) return board.isInCheck() ? -MATE + ply : 0;
+        scoreMoves(moves, scoreBufs[ply], n, ply, ttMove);
+
+        int side = board.getActive().ordinal();
+        int best = -INF;
+        int bestM = Move.NONE;
+        int origAlpha = alpha;
+        for (int i = 0; i < n; i++) {
+            int m = pickNext(moves, scoreBufs[ply], i, n);
+            board.makeMove(m);
+            int score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+            board.unmakeMove();
+            if (stopped) return 0;
+
+            if (score > best) {
+                best = score;
+                bestM = m;
+                if (ply == 0) rootBest = m;
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) {
+                        if (!Move.isCapture(m)) {
+                            if (killers[ply][0] != m) {
+                                killers[ply][1] = killers[ply][0];
+                                killers[ply][0] = m;
+                            }
+                            int h = Move.from(m) * 64 + Move.to(m);
+                            history[side][h] = Math.min(history[side][h] + depth * depth, 50_000);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        int bound = best >= beta ? TranspositionTable.LOWER
+                : best > origAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        tt.store(key, bestM, toTT(best, ply), depth, bound);
+        return best;
+    }
+
+    //поиск взятий до спокойной позиции
+    private int quiesce(int alpha, int beta, int ply) {
+        if ((++nodes & 1023) == 0) checkLimits();
+        if (stopped) return 0;
+
+        boolean check = board.isInCheck();
+        int[] moves = moveBufs[ply];
+        int n = board.getLegalMoves(moves);
+        if (n == 0) return check ? -MATE + ply : 0;
+        if (ply >= MAX_PLY) return evaluate();
+
+        int best = -INF;
+        if (!check) {
+            best = evaluate();
+            if (best >= beta) return best;
+            if (best > alpha) alpha = best;
+        }
+        scoreMoves(moves, scoreBufs[ply], n, ply, Move.NONE);
+        for (int i = 0; i < n; i++) {
+            int m = pickNext(moves, scoreBufs[ply], i, n);
+            if (!check && !Move.isCapture(m)) break;
+            if (!check && board.getBits().see(m) < 0) continue;
+            board.makeMove(m);
+            int score = -quiesce(-beta, -alpha, ply + 1);
+            board.unmakeMove();
+            if (stopped) return 0;
+            if (score > best) {
+                best = score;
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) break;
+                }
+            }
+        }
+        return best;
+    }
+
+    //оценка позиции с точки зрения стороны, делающей ход
+    private int evaluate() {
+        return evaluator.evaluate(board.getBits(), board.getActive());
+    }
+
+    //оценки упорядочивания: ход из таблицы, взятия MVV-LVA, ходы-убийцы, история
+    private void scoreMoves(int[] moves, int[] scores, int n, int ply, int ttMove) {
+        int side = board.getActive().ordinal();
+        for (int i = 0; i < n; i++) {
+            int m = moves[i];
+            if (m == ttMove) {
+                scores[i] = 1_000_000;
+            } else if (Move.isCapture(m)) {
+                scores[i] = 200_000 + VALUES[Move.captured(m).ordinal()] * 16 - VALUES[Move.piece(m).ordinal()] / 16;
+            } else if (m == killers[ply][0]) {
+                scores[i] = 150_000;
+            } else if (m == killers[ply][1]) {
+                scores[i] = 140_000;
+            } else {
+                scores[i] = history[side][Move.from(m) * 64 + Move.to(m)];
+            }
+        }
+    }
+
+    //выбор следующего хода с наибольшей оценкой
+    private static int pickNext(int[] moves, int[] scores, int i, int n) {
+        int best = i;
+        for (int j = i + 1; j < n; j++) {
+            if (scores[j] > scores[best]) best = j;
+        }
+        int m = moves[best];
+        moves[best] = moves[i];
+        moves[i] = m;
+        int s = scores[best];
+        scores[best] = scores[i];
+        scores[i] = s;
+        return m;
+    }
+}
+
+//Класс Параллельный поиск (Lazy SMP: потоки ищут на своих копиях доски с общей таблицей)
+class ParallelSearch {
+    private final TranspositionTable tt; //общая таблица транспозиций
+    private final int threads; //количество потоков
+    private final ExecutorService pool; //потоки-помощники
+    private final AtomicBoolean stop = new AtomicBoolean(false); //общий сигнал остановки
+    private final Board[] boards; //доски потоков (перед поиском загружаются позицией вызывающего)
+    private final Engine[] engines; //движки потоков: [0] - основной, остальные - помощники
+    private long nodes; //узлы последнего поиска по всем потокам
+    private int bestScore; //оценка лучшего хода
+    private int completedDepth; //глубина, завершенная основным потоком
+    private OpeningBook book; //дебютная книга (может отсутствовать)
+    private final int[] bookMoves = new int[Move.MAX_MOVES]; //буфер проверки хода из книги
+
+    public ParallelSearch(TranspositionTable tt, int threads) {
+        this.tt = tt;
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(Math.max(1, this.threads - 1), r -> {
+            Thread t = new Thread(r, "search-helper");
+            t.setDaemon(true);
+            return t;
+        });
+        boards = new Board[this.threads];
+        engines = new Engine[this.threads];
+        for (int i = 0; i < this.threads; i++) {
+            boards[i] = new Board();
+            engines[i] = new Engine(boards[i], tt, stop);
+            if (i > 0) engines[i].setStartDepth(1 + ((i - 1) & 1));
+        }
+    }
+
+    //поиск лучшего хода; ограничение по узлам делится между потоками
+    public int search(Board board, int maxDepth, long maxNodes, long timeMillis) {
+        if (book != null) {
+            int move = book.probe(board, bookMoves);
+            if (move != Move.NONE) {
+                nodes = completedDepth = bestScore = 0;
+                return move;
+            }
+        }
+        stop.set(false);
+        tt.newSearch();
+        long threadNodes = maxNodes > 0 ? Math.max(1, maxNodes / threads) : 0;
+        for (Board b : boards) b.copyFrom(board);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            Engine helper = engines[i];
+            futures.add(pool.submit(() -> helper.search(maxDepth, threadNodes, timeMillis)));
+        }
+        Engine main = engines[0];
+        int move = main.search(maxDepth, threadNodes, timeMillis);
+        stop.set(true);
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        nodes = 0;
+        for (Engine e : engines) nodes += e.getNodes();
+        bestScore = main.getBestScore();
+        completedDepth = main.getCompletedDepth();
+        return move;
+    }
+
+    //установка дебютной книги
+    public void setBook(OpeningBook book) { this.book = book; }
+
+    //установка таблиц эндшпиля
+    public void setTablebases(Tablebases tablebases) {
+        for (Engine e : engines) e.setTablebases(tablebases);
+    }
+
+    //количество узлов последнего поиска по всем потокам
+    public long getNodes() { return nodes; }
+
+    //оценка лучшего хода
+    public int getBestScore() { return bestScore; }
+
+    //глубина, завершенная основным потоком
+    public int getCompletedDepth() { return completedDepth; }
+
+    //остановка потоков-помощников
+    public void close() { pool.shutdownNow(); }
+
+    //вывод масштабирования: узлы в секунду и эффективность при разном числе потоков
+    public static void printScaling(Board board, int maxThreads, long timeMillis) {
+        double base = 0;
+        for (int t = 1; t <= maxThreads; t *= 2) {
+            ParallelSearch ps = new ParallelSearch(new TranspositionTable(64), t);
+            long start = System.nanoTime();
+            ps.search(board, 0, 0, timeMillis);
+            double nps = ps.getNodes() * 1e9 / (System.nanoTime() - start);
+            ps.close();
+            if (t == 1) base = nps;
+            System.out.printf("Потоков: %d, узлов/с: %.0f, эффективность: %.2f, глубина: %d%n",
+                    t, nps, nps / (base * t), ps.getCompletedDepth());
+        }
+    }
+}
+
+//Класс Разбор и запись позиций FEN
+final class Fen {
+    public static final String START = "rnbkqbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1"; //начальная позиция
+    public static final String STANDARD = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1"; //начальная позиция классических шахмат
+
+    private Fen() { }
+
+    //создание доски по строке FEN
+    public static Board parse(String fen) throws InvalidPositionException {
+        Board board = new Board();
+        setup(board, fen);
+        return board;
+    }
+
+    //расстановка позиции FEN на доске; фигуры не на своих начальных клетках, а также король и ладьи
+    //без права рокировки считаются уже ходившими (рокировки и взятия на проходе в игре нет)
+    //строка разбирается и позиция проверяется (по одному королю у цвета, король стороны, которая не ходит,
+    //не под шахом, поле взятия на проходе) до изменения доски: при ошибке доска остается прежней
+    public static void setup(Board board, String fen) throws InvalidPositionException {
+        String[] fields = fen.trim().split("\\s+");
+        String[] ranks = fields[0].split("/");
+        if (ranks.length != 8) {
+            throw new InvalidPositionException("Ожидается 8 горизонталей: '" + fields[0] + "'");
+        }
+        String castling = fields.length > 2 ? fields[2] : "-";
+        PieceType[] types = new PieceType[64];
+        Color[] colors = new Color[64];
+        for (int r = 0; r < 8; r++) {
+            int y = 7 - r, x = 0;
+            for (char ch : ranks[r].toCharArray()) {
+                if (ch >= '1' && ch <= '8') {
+                    x += ch - '0';
+                    continue;
+                }
+                PieceType type = pieceType(ch);
+                if (type == null || x > 7) {
+                    throw new InvalidPositionException("Некорректная горизонталь: '" + ranks[r] + "'");
+                }
+                types[y * 8 + x] = type;
+                colors[y * 8 + x] = Character.isUpperCase(ch) ? Color.WHITE : Color.BLACK;
+                x++;
+            }
+            if (x != 8) throw new InvalidPositionException("Некорректная горизонталь: '" + ranks[r] + "'");
+        }
+        String side = fields.length > 1 ? fields[1] : "w";
+        if (!side.equals("w") && !side.equals("b")) {
+            throw new InvalidPositionException("Некорректная очередь хода: '" + side + "'");
+        }
+        int[] kings = new int[2];
+        BitBoard bits = new BitBoard();
+        for (int sq = 0; sq < 64; sq++) {
+            if (types[sq] == null) continue;
+            bits.put(sq, types[sq], colors[sq]);
+            if (types[sq] == PieceType.KING) kings[colors[sq].ordinal()]++;
+        }
+        if (kings[0] != 1 || kings[1] != 1) {
+            throw new InvalidPositionException("У каждого цвета должен быть ровно один король: '" + fields[0] + "'");
+        }
+        Color active = side.equals("w") ? Color.WHITE : Color.BLACK;
+        if (bits.isInCheck(BitBoard.opposite(active))) {
+            throw new InvalidPositionException("Король стороны, которая не ходит, под шахом: '" + fen + "'");
+        }
+        String enPassant = fields.length > 3 ? fields[3] : "-";
+        if (!enPassant.equals("-")) checkEnPassant(enPassant, active, types, colors);
+        int halfmove, fullmove;
+        try {
+            halfmove = fields.length > 4 ? Integer.parseInt(fields[4]) : 0;
+            fullmove = fields.length > 5 ? Integer.parseInt(fields[5]) : 1;
+        } catch (NumberFormatException e) {
+            throw new InvalidPositionException("Некорректные счетчики ходов: '" + fen + "'");
+        }
+
+        board.clear();
+        for (int sq = 0; sq < 64; sq++) {
+            if (types[sq] == null) continue;
+            int x = sq & 7, y = sq >>> 3;
+            board.place(Coordinates.of(x, y), types[sq], colors[sq], isMoved(x, y, types[sq], colors[sq], castling) ? 1 : 0);
+        }
+        if (side.equals("b")) board.setActive(Color.BLACK);
+        board.setClocks(halfmove, fullmove);
+        board.publish();
+    }
+
+    //проверка поля взятия на проходе: клетка за пешкой соперника, только что сделавшей ход на два поля
+    //(само взятие на проходе в игре не поддерживается, поле только проверяется)
+    private static void checkEnPassant(String field, Color active, PieceType[] types, Color[] colors)
+            throws InvalidPositionException {
+        int rank = active == Color.WHITE ? 5 : 2;
+        if (field.length() != 2 || field.charAt(0) < 'a' || field.charAt(0) > 'h' || field.charAt(1) - '1' != rank) {
+            throw new InvalidPositionException("Некорректное поле взятия на проходе: '" + field + "'");
+        }
+        int sq = rank * 8 + field.charAt(0) - 'a';
+        int pawn = active == Color.WHITE ? sq - 8 : sq + 8;
+        Color mover = BitBoard.opposite(active);
+        if (types[sq] != null || types[pawn] != PieceType.PAWN || colors[pawn] != mover) {
+            throw new InvalidPositionException("Некорректное поле взятия на проходе: '" + field + "'");
+        }
+    }
+
+    //признак сделанного хода, следующий из позиции и прав рокировки
+    private static boolean isMoved(int x, int y, PieceType type, Color col, String castling) {
+        if (Board.initialPiece(x, y, col) != type) return true;
+        boolean white = col == Color.WHITE;
+        if (type == PieceType.ROOK) {
+            return castling.indexOf(castlingChar(x == 7, white)) < 0;
+        }
+        if (type == PieceType.KING) {
+            return castling.indexOf(castlingChar(true, white)) < 0 && castling.indexOf(castlingChar(false, white)) < 0;
+        }
+        return false;
+    }
+
+    //символ права рокировки
+    private static char castlingChar(boolean kingSide, boolean white) {
+        char c = kingSide ? 'k' : 'q';
+        return white ? Character.toUpperCase(c) : c;
+    }
+
+    //запись позиции в FEN (права рокировки - неходившие король и ладьи на начальных клетках)
+    public static String toFen(Board board) {
+        StringBuilder sb = new StringBuilder(90);
+        BitBoard bits = board.getBits();
+        for (int y = 7; y >= 0; y--) {
+            int empty = 0;
+            for (int x = 0; x < 8; x++) {
+                int idx = bits.pieceAt(y * 8 + x);
+                if (idx < 0) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append(empty);
+                empty = 0;
+                char c = "kqrbnp".charAt(idx % 6);
+                sb.append(idx >= 6 ? Character.toUpperCase(c) : c);
+            }
+            if (empty > 0) sb.append(empty);
+            if (y > 0) sb.append('/');
+        }
+        sb.append(board.getActive() == Color.WHITE ? " w " : " b ");
+        int len = sb.length();
+        for (Color col : new Color[]{Color.WHITE, Color.BLACK}) {
+            int y = col == Color.WHITE ? 0 : 7;
+            if (!isHome(board, board.kingHome(col), col, PieceType.KING)) continue;
+            if (isHome(board, Coordinates.of(7, y), col, PieceType.ROOK)) sb.append(castlingChar(true, col == Color.WHITE));
+            if (isHome(board, Coordinates.of(0, y), col, PieceType.ROOK)) sb.append(castlingChar(false, col == Color.WHITE));
+        }
+        if (sb.length() == len) sb.append('-');
+        sb.append(" - ").append(board.getHalfmoveClock()).append(' ').append(board.getFullmoveNumber());
+        return sb.toString();
+    }
+
+    //проверка неходившей фигуры на клетке
+    private static boolean isHome(Board board, Coordinates pos, Color col, PieceType type) {
+        Piece p = board.getSqPiece(pos);
+        return p != null && p.getType() == type && p.getColor() == col && !p.isMoved();
+    }
+
+    //тип фигуры по символу FEN
+    private static PieceType pieceType(char ch) {
+        return switch (Character.toLowerCase(ch)) {
+            case 'k' -> PieceType.KING;
+            case 'q' -> PieceType.QUEEN;
+            case 'r' -> PieceType.ROOK;
+            case 'b' -> PieceType.BISHOP;
+            case 'n' -> PieceType.KNIGHT;
+            case 'p' -> PieceType.PAWN;
+            default -> null;
+        };
+    }
+}
+
+//Обработчик партий PGN
+interface PgnVisitor {
+    //начало партии
+    default void startGame() { }
+
+    //тег партии (границы имени и значения в буфере)
+    default void tag(ByteBuffer buf, int nameStart, int nameEnd, int valueStart, int valueEnd) { }
+
+    //ход партии (доска в позиции до хода)
+    void move(Board board, int move);
+
+    //конец партии: результат как в Game (1, 2, -1 или 0) и признак разбора всех ходов
+    default void endGame(int result, boolean complete) { }
+}
+
+//Класс Чтение PGN (потоковый разбор отображенного в память файла без создания строк на каждый ход)
+class PgnReader {
+    private static final int WINDOW = 1 << 28; //размер отображаемого окна файла
+
+    private final Board board = new Board(); //доска для воспроизведения партий
+    private final int[] moveBuf = new int[Move.MAX_MOVES]; //буфер легальных ходов
+    private long games; //прочитано партий
+    private long moves; //прочитано ходов
+    private long errors; //партий с неразобранными ходами
+    private final String startFen; //позиция партий без тега FEN
+
+    public PgnReader() {
+        this(Fen.STANDARD);
+    }
+
+    public PgnReader(String startFen) {
+        this.startFen = startFen;
+    }
+
+    //чтение всех партий файла, возвращает количество партий
+    public long read(Path path, PgnVisitor visitor) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long base = 0;
+            while (base < size) {
+                int len = (int) Math.min(WINDOW, size - base);
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, base, len);
+                boolean last = base + len >= size;
+                int consumed = parse(buf, len, last, visitor);
+                if (consumed == 0) {
+                    if (last) break;
+                    throw new IOException("Партия не помещается в окно отображения");
+                }
+                base += consumed;
+            }
+        }
+        return games;
+    }
+
+    //прочитано партий
+    public long getGames() { return games; }
+
+    //прочитано ходов
+    public long getMoves() { return moves; }
+
+    //партий с неразобранными ходами
+    public long getErrors() { return errors; }
+
+    //разбор полных партий окна, возвращает количество обработанных байт
+    private int parse(ByteBuffer buf, int limit, boolean last, PgnVisitor visitor) throws IOException {
+        int p = 0;
+        while (true) {
+            while (p < limit && buf.get(p) <= ' ') p++;
+            if (p >= limit) return limit;
+            int end = gameEnd(buf, p, limit);
+            if (end < 0) {
+                if (!last) return p;
+                end = limit;
+            }
+            parseGame(buf, p, end, visitor);
+            p = end;
+        }
+    }
+
+    //конец партии: начало следующей строки тегов после текста ходов (-1, если не найден в окне)
+    private static int gameEnd(ByteBuffer buf, int p, int limit) {
+        boolean movetext = false;
+        boolean lineStart = true;
+        for (int i = p; i < limit; i++) {
+            byte c = buf.get(i);
+            if (lineStart && c > ' ') {
+                if (c == '[') {
+                    if (movetext) return i;
+                } else {
+                    movetext = true;
+                }
+                lineStart = false;
+            }
+            if (c == '\n') lineStart = true;
+        }
+        return -1;
+    }
+
+    //разбор одной партии
+    private void parseGame(ByteBuffer buf, int p, int end, PgnVisitor visitor) throws IOException {
+        visitor.startGame();
+        try {
+            Fen.setup(board, startFen);
+        } catch (InvalidPositionException e) {
+            throw new IllegalStateException(e);
+        }
+        boolean complete = true;
+        int result = 0;
+        while (p < end) {
+            byte c = buf.get(p);
+            if (c <= ' ') {
+                p++;
+            } else if (c == '[') {
+                p = parseTag(buf, p, end, visitor);
+            } else if (c == '{') {
+                while (p < end && buf.get(p) != '}') p++;
+                p++;
+            } else if (c == ';') {
+                while (p < end && buf.get(p) != '\n') p++;
+            } else if (c == '(') {
+                int depth = 0;
+                do {
+                    byte b = buf.get(p++);
+                    if (b == '(') depth++;
+                    else if (b == ')') depth--;
+                } while (p < end && depth > 0);
+            } else {
+                int s = p;
+                while (p < end && !isDelimiter(buf.get(p))) p++;
+                int r = result(buf, s, p);
+                if (r != Integer.MIN_VALUE) {
+                    result = r;
+                    continue;
+                }
+                if (c == '$' || !complete) continue;
+                while (s < p && (buf.get(s) >= '0' && buf.get(s) <= '9' || buf.get(s) == '.')) s++;
+                if (s == p) continue;
+                int m = resolve(buf, s, p);
+                if (m == Move.NONE) {
+                    complete = false;
+                    errors++;
+                    continue;
+                }
+                visitor.move(board, m);
+                board.makeMove(m);
+                moves++;
+            }
+        }
+        games++;
+        visitor.endGame(result, complete);
+    }
+
+    //разбор тега; позиция FEN из тега заменяет начальную
+    private int parseTag(ByteBuffer buf, int p, int end, PgnVisitor visitor) throws IOException {
+        int nameStart = p + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < end && buf.get(nameEnd) > ' ') nameEnd++;
+        int valueStart = nameEnd;
+        while (valueStart < end && buf.get(valueStart) != '"') valueStart++;
+        valueStart++;
+        int valueEnd = valueStart;
+        while (valueEnd < end && buf.get(valueEnd) != '"') valueEnd++;
+        visitor.tag(buf, nameStart, nameEnd, valueStart, valueEnd);
+        if (nameEnd - nameStart == 3 && buf.get(nameStart) == 'F' && buf.get(nameStart + 1) == 'E'
+                && buf.get(nameStart + 2) == 'N') {
+            byte[] fen = new byte[valueEnd - valueStart];
+            buf.get(valueStart, fen);
+            try {
+                Fen.setup(board, new String(fen, StandardCharsets.US_ASCII));
+            } catch (InvalidPositionException e) {
+                throw new IOException("Некорректный тег FEN: " + e.getMessage());
+            }
+        }
+        int p2 = valueEnd;
+        while (p2 < end && buf.get(p2) != ']') p2++;
+        return p2 + 1;
+    }
+
+    //проверка разделителя лексем
+    private static boolean isDelimiter(byte c) {
+        return c <= ' ' || c == '{' || c == '}' || c == '(' || c == ')' || c == ';' || c == '[';
+    }
+
+    //результат партии по лексеме (Integer.MIN_VALUE, если это не результат)
+    private static int result(ByteBuffer buf, int s, int e) {
+        int len = e - s;
+        if (len == 1 && buf.get(s) == '*') return 0;
+        if (len == 3 && buf.get(s + 1) == '-') {
+            if (buf.get(s) == '1' && buf.get(s + 2) == '0') return 1;
+            if (buf.get(s) == '0' && buf.get(s + 2) == '1') return 2;
+        }
+        if (len == 7 && buf.get(s) == '1' && buf.get(s + 1) == '/' && buf.get(s + 3) == '-') return -1;
+        return Integer.MIN_VALUE;
+    }
+
+    //поиск легального хода по записи SAN (рокировка и превращение не поддерживаются)
+    private int resolve(ByteBuffer buf, int s, int e) {
+        while (e > s && (buf.get(e - 1) == '+' || buf.get(e - 1) == '#' || buf.get(e - 1) == '!' || buf.get(e - 1) == '?')) e--;
+        if (e - s < 2) return Move.NONE;
+        int file = buf.get(e - 2) - 'a';
+        int rank = buf.get(e - 1) - '1';
+        if (file < 0 || file > 7 || rank < 0 || rank > 7) return Move.NONE;
+        PieceType type = switch (buf.get(s)) {
+            case 'K' -> PieceType.KING;
+            case 'Q' -> PieceType.QUEEN;
+            case 'R' -> PieceType.ROOK;
+            case 'B' -> PieceType.BISHOP;
+            case 'N' -> PieceType.KNIGHT;
+            default -> PieceType.PAWN;
+        };
+        if (type != PieceType.PAWN) s++;
+        int fromFile = -1, fromRank = -1;
+        for (int i = s; i < e - 2; i++) {
+            byte c = buf.get(i);
+            if (c >= 'a' && c <= 'h') fromFile = c - 'a';
+            else if (c >= '1' && c <= '8') fromRank = c - '1';
+            else if (c != 'x' && c != '-') return Move.NONE;
+        }
+        int to = rank * 8 + file;
+        int n = board.getLegalMoves(moveBuf);
+        for (int i = 0; i < n; i++) {
+            int m = moveBuf[i];
+            int from = Move.from(m);
+            if (Move.to(m) == to && Move.piece(m) == type
+                    && (fromFile < 0 || (from & 7) == fromFile) && (fromRank < 0 || (from >>> 3) == fromRank)) {
+                return m;
+            }
+        }
+        return Move.NONE;
+    }
+
+    //запуск из командной строки: pgn <файл>
+    public static void run(String file) throws IOException {
+        PgnReader reader = new PgnReader();
+        Path path = Paths.get(file);
+        long start = System.nanoTime();
+        reader.read(path, (board, move) -> { });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Партий: %d, ходов: %d, с ошибками: %d, %.1f МБ/с%n", reader.getGames(),
+                reader.getMoves(), reader.getErrors(), Files.size(path) / seconds / (1 << 20));
+    }
+}
+
+//Класс Дебютная книга (отсортированные по ключу записи по 16 байт в отображенном файле)
+//Запись: ключ Зобриста (long), ход (short, младшие 12 бит Move), вес (short), резерв (int)
+class OpeningBook {
+    static final int ENTRY = 16; //размер записи
+
+    private final MappedByteBuffer buf; //записи книги
+    private final int count; //количество записей
+
+    public OpeningBook(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("Слишком большая книга: " + path);
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        count = buf.capacity() / ENTRY;
+    }
+
+    //количество записей
+    public int size() {
+        return count;
+    }
+
+    //первая запись с ключом не меньше заданного (бинарный поиск)
+    private int lowerBound(long key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buf.getLong(mid * ENTRY) < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    //ход из книги для позиции (случайный с учетом весов) или Move.NONE; moves - буфер легальных ходов
+    public int probe(Board board, int[] moves) {
+        return probe(board, moves, ThreadLocalRandom.current());
+    }
+
+    //ход из книги, выбранный заданным генератором (для воспроизводимых партий)
+    public int probe(Board board, int[] moves, RandomGenerator rnd) {
+        long key = board.getKey();
+        int first = lowerBound(key);
+        int total = 0;
+        int end = first;
+        for (; end < count && buf.getLong(end * ENTRY) == key; end++) total += buf.getShort(end * ENTRY + 8 + 2) & 0xFFFF;
+        if (total == 0) return Move.NONE;
+        int pick = rnd.nextInt(total);
+        int i = first;
+        for (; i < end - 1; i++) {
+            pick -= buf.getShort(i * ENTRY + 8 + 2) & 0xFFFF;
+            if (pick < 0) break;
+        }
+        int packed = buf.getShort(i * ENTRY + 8) & 0xFFF;
+        int n = board.getLegalMoves(moves);
+        for (int j = 0; j < n; j++) {
+            if ((moves[j] & 0xFFF) == packed) return moves[j];
+        }
+        return Move.NONE;
+    }
+
+    //построение книги из PGN: ходы первых maxPly полуходов каждой партии, вес - число повторений
+    public static int build(Path pgn, Path out, int maxPly, String startFen) throws IOException {
+        Builder builder = new Builder(maxPly);
+        new PgnReader(startFen).read(pgn, builder);
+        return builder.write(out);
+    }
+
+    //Класс Сборщик книги (пары ключ-ход в растущих массивах)
+    private static final class Builder implements PgnVisitor {
+        private final int maxPly; //глубина книги в полуходах
+        private long[] keys = new long[1 << 12]; //ключи позиций
+        private int[] moves = new int[1 << 12]; //ходы
+        private int size; //количество пар
+
+        Builder(int maxPly) {
+            this.maxPly = maxPly;
+        }
+
+        @Override
+        public void move(Board board, int move) {
+            if (board.getUndoSize() >= maxPly) return;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                moves = Arrays.copyOf(moves, size * 2);
+            }
+            keys[size] = board.getKey();
+            moves[size] = move & 0xFFF;
+            size++;
+        }
+
+        //поразрядная сортировка пар по ключу (со знаком), затем по ходу; устойчивые проходы от младших разрядов
+        private void sort() {
+            long[] keyTmp = new long[size];
+            int[] moveTmp = new int[size];
+            int[] counts = new int[1 << 12];
+            for (int pass = -1; pass < 8; pass++) {
+                int bits = pass < 0 ? 12 : 8;
+                Arrays.fill(counts, 0, 1 << bits, 0);
+                for (int i = 0; i < size; i++) counts[digit(pass, i)]++;
+                for (int d = 0, sum = 0; d < 1 << bits; d++) {
+                    int c = counts[d];
+                    counts[d] = sum;
+                    sum += c;
+                }
+                for (int i = 0; i < size; i++) {
+                    int at = counts[digit(pass, i)]++;
+                    keyTmp[at] = keys[i];
+                    moveTmp[at] = moves[i];
+                }
+                long[] k = keys;
+                keys = keyTmp;
+                keyTmp = k;
+                int[] m = moves;
+                moves = moveTmp;
+                moveTmp = m;
+            }
+        }
+
+        //разряд пары на проходе сортировки: -1 - ход, 0..7 - байт ключа (в старшем байте инвертирован знак)
+        private int digit(int pass, int i) {
+            if (pass < 0) return moves[i];
+            long key = pass == 7 ? keys[i] ^ Long.MIN_VALUE : keys[i];
+            return (int) (key >>> (pass * 8)) & 0xFF;
+        }
+
+        //сортировка пар, схлопывание повторов в веса и запись файла; возвращает количество записей
+        int write(Path out) throws IOException {
+            sort();
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY * 4096);
+            int entries = 0;
+            try (FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int i = 0; i < size; ) {
+                    int j = i + 1;
+                    while (j < size && keys[j] == keys[i] && moves[j] == moves[i]) j++;
+                    if (!buf.hasRemaining()) {
+                        buf.flip();
+                        while (buf.hasRemaining()) ch.write(buf);
+                        buf.clear();
+                    }
+                    buf.putLong(keys[i]).putShort((short) moves[i]).putShort((short) Math.min(j - i, 0xFFFF)).putInt(0);
+                    entries++;
+                    i = j;
+                }
+                buf.flip();
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+            return entries;
+        }
+    }
+
+    //запуск из командной строки: book <pgn> <файл книги> [полуходов] [standard]
+    //партии без тега FEN начинаются с начальной позиции этой игры, standard - с классической
+    public static void run(String[] args) throws IOException {
+        int plies = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        String startFen = args.length > 3 && args[3].equals("standard") ? Fen.STANDARD : Fen.START;
+        long start = System.nanoTime();
+        int entries = build(Paths.get(args[0]), Paths.get(args[1]), plies, startFen);
+        System.out.printf("Записей в книге: %d, %.1f с%n", entries, (System.nanoTime() - start) / 1e9);
+    }
+}
+
+//Класс Таблица эндшпиля (король и фигура против короля), построенная ретроградным анализом
+//Индекс: очередь хода (сильная сторона - 0) * 2^18 + король сильной стороны * 4096 + король слабой * 64 + фигура
+//Значение: 0 - ничья, n > 0 - выигрыш за n полуходов, n < 0 - проигрыш за -n-1 полуходов (с точки зрения ходящего)
+class Tablebase {
+    public static final int SIZE = 2 << 18; //количество позиций
+    public static final int MAX_PLIES = 127; //наибольшее расстояние до мата в таблице (полуходов; значения хранятся в байте)
+    private static final byte UNKNOWN = Byte.MIN_VALUE; //значение еще не определено
+    private static final int CHUNK = 1 << 12; //позиций в одной задаче генерации
+
+    private final PieceType type; //фигура сильной стороны
+    private final ByteBuffer values; //значения позиций (в куче или отображенный файл)
+
+    private Tablebase(PieceType type, ByteBuffer values) {
+        this.type = type;
+        this.values = values;
+    }
+
+    //фигура сильной стороны
+    public PieceType getType() {
+        return type;
+    }
+
+    //имя файла таблицы (например KQK.tb)
+    public static String fileName(PieceType type) {
+        return "K" + "KQRBNP".charAt(type.ordinal()) + "K.tb";
+    }
+
+    //значение позиции по индексу
+    public int get(int index) {
+        return values.get(index);
+    }
+
+    //индекс позиции; сильная сторона всегда приводится к белым отражением доски
+    public static int index(int strongKing, int weakKing, int piece, boolean strongToMove) {
+        return (strongToMove ? 0 : 1 << 18) | strongKing << 12 | weakKing << 6 | piece;
+    }
+
+    //расстановка позиции индекса на битборде; false, если позиция невозможна
+    private static boolean setup(BitBoard bits, PieceType type, int index) {
+        int wk = (index >>> 12) & 63, bk = (index >>> 6) & 63, x = index & 63;
+        if (wk == bk || wk == x || bk == x) return false;
+        bits.clear();
+        bits.put(wk, PieceType.KING, Color.WHITE);
+        bits.put(bk, PieceType.KING, Color.BLACK);
+        bits.put(x, type, Color.WHITE);
+        Color side = index >>> 18 == 0 ? Color.WHITE : Color.BLACK;
+        return !bits.isInCheck(BitBoard.opposite(side));
+    }
+
+    //индекс позиции после хода (-1, если взята фигура и осталось два короля)
+    private static int child(int index, int move) {
+        int wk = (index >>> 12) & 63, bk = (index >>> 6) & 63, x = index & 63;
+        int from = Move.from(move), to = Move.to(move);
+        if (to == x) return -1;
+        if (from == wk) wk = to;
+        else if (from == bk) bk = to;
+        else x = to;
+        return index(wk, bk, x, index >>> 18 != 0);
+    }
+
+    //построение таблицы: начальная разметка матов и патов, затем проходы по числу полуходов до мата
+    public static Tablebase generate(PieceType type) {
+        byte[] v = new byte[SIZE];
+        IntStream.range(0, SIZE / CHUNK).parallel().forEach(c -> {
+            BitBoard bits = new BitBoard();
+            int[] buf = new int[Move.MAX_MOVES];
+            for (int i = c * CHUNK; i < (c + 1) * CHUNK; i++) {
+                if (!setup(bits, type, i)) continue;
+                Color side = i >>> 18 == 0 ? Color.WHITE : Color.BLACK;
+                if (bits.generateLegal(side, buf, 0) == 0) v[i] = bits.isInCheck(side) ? (byte) -1 : 0;
+                else v[i] = UNKNOWN;
+            }
+        });
+        int idle = 0;
+        for (int d = 1; d < MAX_PLIES && idle < 2; d++) {
+            int ply = d;
+            long changed = IntStream.range(0, SIZE / CHUNK).parallel().mapToLong(c -> pass(type, v, c, ply)).sum();
+            idle = changed == 0 ? idle + 1 : 0;
+        }
+        for (int i = 0; i < SIZE; i++) {
+            if (v[i] == UNKNOWN) v[i] = 0;
+        }
+        return new Tablebase(type, ByteBuffer.wrap(v));
+    }
+
+    //один проход: выигрыш за d, если есть ход в проигрыш за d-1; проигрыш за d, если все ходы ведут в выигрыш не дольше d-1
+    private static long pass(PieceType type, byte[] v, int chunk, int d) {
+        BitBoard bits = new BitBoard();
+        int[] buf = new int[Move.MAX_MOVES];
+        long changed = 0;
+        for (int i = chunk * CHUNK; i < (chunk + 1) * CHUNK; i++) {
+            if (v[i] != UNKNOWN) continue;
+            setup(bits, type, i);
+            int n = bits.generateLegal(i >>> 18 == 0 ? Color.WHITE : Color.BLACK, buf, 0);
+            boolean win = false, allLose = true;
+            for (int j = 0; j < n && !win; j++) {
+                int c = child(i, buf[j]);
+                int cv = c < 0 ? 0 : v[c];
+                if (cv == -d) win = true;
+                if (cv <= 0 || cv >= d) allLose = false;
+            }
+            if (win) {
+                v[i] = (byte) d;
+                changed++;
+            } else if (allLose) {
+                v[i] = (byte) -(d + 1);
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    //запись таблицы в файл
+    public void save(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = values.duplicate();
+            buf.clear();
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+
+    //загрузка таблицы отображением файла в память
+    public static Tablebase load(PieceType type, Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() != SIZE) throw new IOException("Некорректный размер таблицы: " + path);
+            return new Tablebase(type, ch.map(FileChannel.MapMode.READ_ONLY, 0, SIZE));
+        }
+    }
+}
+
+//Класс Набор таблиц эндшпиля
+class Tablebases {
+    public static final int NONE = Integer.MIN_VALUE; //позиция не покрыта таблицами
+    private static final PieceType[] TYPES = {PieceType.QUEEN, PieceType.ROOK, PieceType.PAWN, PieceType.BISHOP, PieceType.KNIGHT}; //типы таблиц
+
+    private final Tablebase[] tables = new Tablebase[6]; //таблицы по типу фигуры
+
+    //добавление таблицы
+    public void add(Tablebase table) {
+        tables[table.getType().ordinal()] = table;
+    }
+
+    //значение позиции с точки зрения ходящего или NONE; два короля - ничья
+    public int probe(BitBoard bits, Color active) {
+        long all = bits.getAll();
+        int count = Long.bitCount(all);
+        if (count == 2) return 0;
+        if (count != 3) return NONE;
+        long others = all & ~bits.getPieces(PieceType.KING, Color.WHITE) & ~bits.getPieces(PieceType.KING, Color.BLACK);
+        int x = Long.numberOfTrailingZeros(others);
+        int idx = bits.pieceAt(x);
+        Tablebase table = tables[idx % 6];
+        if (table == null) return NONE;
+        Color strong = idx >= 6 ? Color.WHITE : Color.BLACK;
+        int sk = bits.kingSquare(strong), wk = bits.kingSquare(BitBoard.opposite(strong));
+        if (strong == Color.BLACK) {
+            sk ^= 56;
+            wk ^= 56;
+            x ^= 56;
+        }
+        return table.get(Tablebase.index(sk, wk, x, active == strong));
+    }
+
+    //перевод значения таблицы в оценку движка на глубине ply
+    public static int score(int value, int ply) {
+        if (value > 0) return Engine.MATE - ply - value;
+        if (value < 0) return -Engine.MATE + ply - value - 1;
+        return 0;
+    }
+
+    //лучший ход по таблицам (Move.NONE, если позиция не покрыта); moves - буфер ходов
+    public int bestMove(Board board, int[] moves) {
+        if (probe(board.getBits(), board.getActive()) == NONE) return Move.NONE;
+        int n = board.getLegalMoves(moves);
+        int best = Move.NONE, bestScore = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            board.makeMove(moves[i]);
+            int v = probe(board.getBits(), board.getActive());
+            board.unmakeMove();
+            int score = v == NONE ? 0 : -score(v, 1);
+            if (score > bestScore) {
+                bestScore = score;
+                best = moves[i];
+            }
+        }
+        return best;
+    }
+
+    //загрузка имеющихся таблиц из каталога
+    public static Tablebases load(Path dir) throws IOException {
+        Tablebases tb = new Tablebases();
+        for (PieceType type : TYPES) {
+            Path path = dir.resolve(Tablebase.fileName(type));
+            if (Files.exists(path)) tb.add(Tablebase.load(type, path));
+        }
+        return tb;
+    }
+
+    //запуск из командной строки: tb <каталог> - построение и запись всех таблиц
+    public static void run(String dir) throws IOException {
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        for (PieceType type : TYPES) {
+            long start = System.nanoTime();
+            Tablebase table = Tablebase.generate(type);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int wins = 0, maxPly = 0;
+            for (int i = 0; i < Tablebase.SIZE; i++) {
+                int v = table.get(i);
+                if (v > 0) wins++;
+                maxPly = Math.max(maxPly, Math.abs(v));
+            }
+            table.save(path.resolve(Tablebase.fileName(type)));
+            System.out.printf("%s: %.2f с, %d КБ, выигрышей %d, максимум %d полуходов%n", Tablebase.fileName(type),
+                    seconds, Tablebase.SIZE >> 10, wins, maxPly);
+        }
+    }
+}
+
+//Класс Самоигра (массовая симуляция партий без консоли на пуле с перехватом задач)
+class SelfPlay {
+    private static final int MAX_PLIES = 300; //ограничение длины партии (дальше ничья)
+    private static final int LEAF_GAMES = 8; //партий в неделимой задаче
+    private static final int BATCH_LINES = 256; //строк результата в одной записи в файл
+    private static final int RANDOM_PLIES = 6; //случайных полуходов в начале партии движков (разнообразие по зерну)
+    private static final int TT_SIZE_MB = 12; //размер таблицы транспозиций исполнителя
+
+    private final int engineNodes; //узлов движка на ход (0 - случайные ходы)
+    private final long seed; //зерно случайных ходов
+    private final ConcurrentLinkedQueue<Worker> pool = new ConcurrentLinkedQueue<>(); //свободные исполнители
+    private FileChannel out; //файл результатов (может отсутствовать)
+    private OpeningBook book; //дебютная книга (может отсутствовать)
+
+    public SelfPlay(int engineNodes, long seed) {
+        this.engineNodes = engineNodes;
+        this.seed = seed;
+    }
+
+    //Класс Счетчики результатов (свои у каждой задачи, складываются при объединении)
+    static final class Stats {
+        long games; //сыграно партий
+        long whiteWins; //побед белых
+        long blackWins; //побед черных
+        long draws; //ничьих (пат, 50 ходов, ограничение длины)
+        long plies; //сделано полуходов
+
+        //прибавление счетчиков другой задачи
+        Stats merge(Stats other) {
+            games += other.games;
+            whiteWins += other.whiteWins;
+            blackWins += other.blackWins;
+            draws += other.draws;
+            plies += other.plies;
+            return this;
+        }
+    }
+
+    //установка дебютной книги (ход из книги выбирается генератором партии)
+    public void setBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    //Класс Исполнитель (доска, движок с таблицей транспозиций и буфер ходов; используется одной задачей за раз)
+    private final class Worker {
+        final Board board = new Board(); //доска в начальной позиции
+        final Engine engine = engineNodes > 0 ? new Engine(board, new TranspositionTable(TT_SIZE_MB)) : null; //движок
+        final int[] buf = new int[Move.MAX_MOVES]; //буфер ходов
+    }
+
+    //исполнитель из пула (новый создается, только если все заняты: не больше одного на поток)
+    private Worker acquire() {
+        Worker worker = pool.poll();
+        return worker != null ? worker : new Worker();
+    }
+
+    //возврат исполнителя в пул с откатом ходов к начальной позиции
+    private void release(Worker worker) {
+        worker.board.rewind();
+        pool.offer(worker);
+    }
+
+    //одна партия; возвращает итоговое состояние (Board.STATE_*, -1 - ничья по правилам или длине)
+    //партия движков начинается с RANDOM_PLIES случайных полуходов, чтобы зерно партии меняло игру
+    private int playGame(Worker worker, SplittableRandom rnd) {
+        Board board = worker.board;
+        Engine engine = worker.engine;
+        int[] buf = worker.buf;
+        if (engine != null) engine.newGame();
+        while (board.getUndoSize() < MAX_PLIES && board.getHalfmoveClock() < 100) {
+            int n = board.getLegalMoves(buf);
+            if (n == 0) {
+                return board.isInCheck()
+                        ? (board.getActive() == Color.WHITE ? Board.STATE_BLACK_MATES : Board.STATE_WHITE_MATES)
+                        : Board.STATE_STALEMATE;
+            }
+            int move = book != null ? book.probe(board, buf, rnd) : Move.NONE; //probe пишет в buf те же ходы
+            if (move == Move.NONE) {
+                move = engine != null && board.getUndoSize() >= RANDOM_PLIES
+                        ? engine.search(0, engineNodes, 0) : buf[rnd.nextInt(n)];
+            }
+            board.makeMove(move);
+        }
+        return -1;
+    }
+
+    //Класс Задача на диапазон партий (делится пополам, пока диапазон больше LEAF_GAMES)
+    private final class Range extends RecursiveTask<Stats> {
+        private static final long serialVersionUID = 1L;
+        private final int from; //первая партия
+        private final int to; //партия после последней
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (to - from > LEAF_GAMES) {
+                int mid = (from + to) >>> 1;
+                Range left = new Range(from, mid);
+                left.fork();
+                Stats right = new Range(mid, to).compute();
+                return right.merge(left.join());
+            }
+            Stats stats = new Stats();
+            Worker worker = acquire();
+            Board board = worker.board;
+            StringBuilder lines = new StringBuilder();
+            try {
+                for (int g = from; g < to; g++) {
+                    int state = playGame(worker, new SplittableRandom(seed + g));
+                    stats.games++;
+                    stats.plies += board.getUndoSize();
+                    if (state == Board.STATE_WHITE_MATES) stats.whiteWins++;
+                    else if (state == Board.STATE_BLACK_MATES) stats.blackWins++;
+                    else stats.draws++;
+                    if (out != null) {
+                        lines.append(g).append(' ').append(state).append(' ').append(board.getUndoSize());
+                        for (int i = 0; i < board.getUndoSize(); i++) {
+                            lines.append(' ').append(Move.toString(board.getHistoryMove(i)));
+                        }
+                        lines.append('\n');
+                        if ((g - from + 1) % BATCH_LINES == 0) {
+                            write(lines);
+                            lines.setLength(0);
+                        }
+                    }
+                    board.rewind();
+                }
+                write(lines);
+            } finally {
+                release(worker);
+            }
+            return stats;
+        }
+    }
+
+    //запись пачки строк в файл результатов
+    private void write(CharSequence lines) {
+        if (out == null || lines.length() == 0) return;
+        ByteBuffer buf = StandardCharsets.US_ASCII.encode(CharBuffer.wrap(lines));
+        synchronized (this) {
+            try {
+                while (buf.hasRemaining()) out.write(buf);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    //запуск games партий на threads потоках; file - файл результатов или null
+    public Stats run(int games, int threads, Path file) throws IOException {
+        if (file != null) {
+            out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        ForkJoinPool fj = new ForkJoinPool(Math.max(1, threads));
+        try {
+            return fj.invoke(new Range(0, games));
+        } finally {
+            fj.shutdown();
+            if (out != null) out.close();
+            out = null;
+        }
+    }
+
+    //запуск из командной строки: selfplay <партий> [потоков] [узлов движка] [файл]
+    public static void run(String[] args) throws IOException {
+        int games = Integer.parseInt(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int nodes = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        Path file = args.length > 3 ? Paths.get(args[3]) : null;
+        long start = System.nanoTime();
+        SelfPlay selfPlay = new SelfPlay(nodes, 0x5E1FL);
+        selfPlay.setBook(Game.loadBook());
+        Stats s = selfPlay.run(games, threads, file);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Партий: %d (белые %d, черные %d, ничьи %d), полуходов: %d%n", s.games, s.whiteWins,
+                s.blackWins, s.draws, s.plies);
+        System.out.printf("%.2f с, %.0f партий/с, %.0f полуходов/с%n", seconds, s.games / seconds, s.plies / seconds);
+    }
+}
+
+//Класс Perft (подсчет листьев дерева ходов для проверки и замера генератора)
+class Perft {
+    private final Board board; //доска, на которой ведется подсчет
+    private final int[][] moveBufs; //буферы ходов по глубине
+
+    public Perft(Board board, int maxDepth) {
+        this.board = board;
+        this.moveBufs = new int[Math.max(1, maxDepth) + 1][Move.MAX_MOVES];
+    }
+
+    //количество листьев на глубине (последний уровень считается без выполнения ходов)
+    public long perft(int depth) {
+        if (depth == 0) return 1;
+        int[] moves = moveBufs[depth];
+        int n = board.getLegalMoves(moves);
+        if (depth == 1) return n;
+        long nodes = 0;
+        for (int i = 0; i < n; i++) {
+            board.makeMove(moves[i]);
+            nodes += perft(depth - 1);
+            board.unmakeMove();
+        }
+        return nodes;
+    }
+
+    //количество листьев для каждого хода из корня
+    public static long[] divide(Board board, int depth, int[] rootMoves, int n, boolean parallel) {
+        long[] counts = new long[n];
+        if (!parallel) {
+            Perft p = new Perft(board, depth);
+            for (int i = 0; i < n; i++) {
+                board.makeMove(rootMoves[i]);
+                counts[i] = p.perft(depth - 1);
+                board.unmakeMove();
+            }
+            return counts;
+        }
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int move = rootMoves[i];
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Board copy = new Board(board);
+                copy.makeMove(move);
+                return new Perft(copy, depth).perft(depth - 1);
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (int i = 0; i < n; i++) counts[i] = tasks.get(i).join();
+        return counts;
+    }
+
+    //запуск из командной строки: perft <глубина> [divide] [parallel] [FEN]
+    public static void run(String[] args) throws InvalidPositionException {
+        int depth = Integer.parseInt(args[0]);
+        boolean divide = false, parallel = false;
+        StringBuilder fen = new StringBuilder();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("divide")) divide = true;
+            else if (args[i].equals("parallel")) parallel = true;
+            else fen.append(args[i]).append(' ');
+        }
+        Board board = fen.length() > 0 ? Fen.parse(fen.toString()) : new Board();
+        int[] rootMoves = new int[Move.MAX_MOVES];
+        int n = board.getLegalMoves(rootMoves);
+
+        long start = System.nanoTime();
+        long total;
+        if (depth <= 1) {
+            total = depth == 1 ? n : 1;
+        } else {
+            boolean par = parallel;
+            long[] counts = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> divide(board, depth, rootMoves, n, par)));
+            total = 0;
+            for (int i = 0; i < n; i++) {
+                if (divide) System.out.println(Move.toString(rootMoves[i]) + ": " + counts[i]);
+                total += counts[i];
+            }
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.out.printf("Глубина %d: %d узлов, %.3f с, %.0f узлов/с%n",
+                depth, total, nanos / 1e9, total * 1e9 / nanos);
+    }
+}
+
+//Класс Отрисовка доски (кадр собирается в одном буфере и выводится одной записью)
+class BoardRenderer {
+    private static final String[] SYMBOLS = {
+            "\u265A ", "\u265B ", "\u265C ", "\u265D ", "\u265E ", "\u265F ",
+            "\u2654 ", "\u2655 ", "\u2656 ", "\u2657 ", "\u2658 ", "\u2659 "
+    }; //символы фигур по индексу битборда
+    private static final String EMPTY_CELL = "  "; //пустая клетка
+    private static final String MARK_CELL = " *"; //клетка, доступная для хода
+    private static final String FILES = "  A  B  C  D  E  F  G  H\n"; //подпись вертикалей
+    private static final String CLEAR = "\033[H\033[2J"; //очистка экрана
+    private static final int BOARD_ROW = 2; //строка экрана с 8-й горизонталью
+    private static final int FOOTER_ROW = BOARD_ROW + 9; //строка экрана под доской
+
+    private final StringBuilder frame = new StringBuilder(1024); //текущий кадр
+    private final boolean diffOnly; //перерисовывать только изменившиеся клетки
+    private final int[] shown = new int[64]; //индексы фигур в последнем выведенном экране
+    private boolean hasScreen = false; //экран уже выведен целиком (сбрасывается любым другим выводом)
+    private CharsetEncoder encoder; //кодировщик вывода (в кодировке потока, куда выводился кадр)
+    private PrintStream encoderOut; //поток, для которого создан кодировщик
+    private CharBuffer chars = CharBuffer.allocate(1024); //символы кадра
+    private ByteBuffer bytes = ByteBuffer.allocate(4096); //байты кадра
+
+    public BoardRenderer(boolean diffOnly) {
+        this.diffOnly = diffOnly;
+    }
+
+    //начало нового кадра
+    public BoardRenderer begin() {
+        frame.setLength(0);
+        return this;
+    }
+
+    //добавить текст в кадр
+    public BoardRenderer append(String s) {
+        frame.append(s);
+        return this;
+    }
+
+    //добавить сетку доски: фигуры или (если onlyMarks) только отметки ходов по маске
+    public BoardRenderer appendBoard(BitBoard bits, long marks, boolean onlyMarks) {
+        for (int y = 7; y >= 0; y--) {
+            frame.append((char) ('1' + y));
+            for (int x = 0; x < 8; x++) {
+                int sq = y * 8 + x;
+                String cell;
+                if (onlyMarks) {
+                    cell = (marks >>> sq & 1) != 0 ? MARK_CELL : EMPTY_CELL;
+                } else {
+                    int idx = bits.pieceAt(sq);
+                    cell = idx >= 0 ? SYMBOLS[idx] : EMPTY_CELL;
+                }
+                frame.append('|').append(cell);
+            }
+            frame.append("|\n");
+        }
+        frame.append(FILES);
+        return this;
+    }
+
+    //вывод экрана игры: целиком или, в режиме diffOnly, только изменившиеся клетки и строки вокруг доски
+    public void drawScreen(PrintStream out, String header, BitBoard bits, String footer) {
+        begin();
+        if (!diffOnly || !hasScreen) {
+            frame.append(CLEAR).append(header).append('\n');
+            appendBoard(bits, 0L, false);
+            for (int sq = 0; sq < 64; sq++) shown[sq] = bits.pieceAt(sq);
+            hasScreen = true;
+        } else {
+            frame.append("\033[1;1H\033[2K").append(header);
+            for (int sq = 0; sq < 64; sq++) {
+                int idx = bits.pieceAt(sq);
+                if (idx == shown[sq]) continue;
+                shown[sq] = idx;
+                int row = BOARD_ROW + 7 - (sq >>> 3);
+                int col = 3 + (sq & 7) * 3;
+                frame.append("\033[").append(row).append(';').append(col).append('H')
+                        .append(idx >= 0 ? SYMBOLS[idx] : EMPTY_CELL);
+            }
+            frame.append("\033[").append(FOOTER_ROW).append(";1H\033[J");
+        }
+        frame.append(footer);
+        write(out);
+        hasScreen = true;
+    }
+
+    //вывод кадра одной записью (экран после него перерисовывается целиком)
+    public void flush(PrintStream out) {
+        write(out);
+        hasScreen = false;
+    }
+
+    //вывод текста между кадрами через отрисовщик (экран после него перерисовывается целиком)
+    public void print(PrintStream out, String text) {
+        begin().append(text).flush(out);
+    }
+
+    //кодировка потока: у System.out и System.err - кодировка консоли, как при их создании в JDK 17
+    static Charset charsetOf(PrintStream out) {
+        String name = out == System.out ? System.getProperty("sun.stdout.encoding")
+                : out == System.err ? System.getProperty("sun.stderr.encoding") : null;
+        try {
+            if (name != null) return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            //неизвестная кодировка консоли - кодировка по умолчанию
+        }
+        return Charset.defaultCharset();
+    }
+
+    //запись кадра в поток одной записью
+    private void write(PrintStream out) {
+        if (encoder == null || encoderOut != out) {
+            encoder = charsetOf(out).newEncoder()
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .onMalformedInput(CodingErrorAction.REPLACE);
+            encoderOut = out;
+        }
+        if (chars.capacity() < frame.length()) {
+            chars = CharBuffer.allocate(frame.length() * 2);
+            bytes = ByteBuffer.allocate(frame.length() * 8);
+        }
+        chars.clear();
+        chars.append(frame);
+        chars.flip();
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(chars, bytes, true);
+        encoder.flush(bytes);
+        out.write(bytes.array(), 0, bytes.position());
+        out.flush();
+        frame.setLength(0);
+    }
+}
+
+//Класс Гистограмма задержек (логарифмические корзины с линейным делением, как в HdrHistogram)
+class LatencyHistogram {
+    private static final int SUB_BITS = 4; //16 корзин на каждую степень двойки (точность около 6%)
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS); //счетчики корзин
+    private final LongAdder total = new LongAdder(); //количество замеров
+    private final AtomicLong max = new AtomicLong(); //максимальное значение
+
+    //запись значения (наносекунды)
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        total.increment();
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    //номер корзины значения
+    private static int bucket(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    //нижняя граница значений корзины
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exp - SUB_BITS);
+    }
+
+    //количество замеров
+    public long getCount() { return total.sum(); }
+
+    //максимальное значение
+    public long getMax() { return max.get(); }
+
+    //значение процентиля (p от 0 до 100)
+    public long percentile(double p) {
+        long n = getCount();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(lowerBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    //очистка гистограммы
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        total.reset();
+        max.set(0);
+    }
+
+    //сводка процентилей в микросекундах
+    public String summary() {
+        return String.format("n=%d p50=%.1fмкс p90=%.1fмкс p99=%.1fмкс p99.9=%.1fмкс max=%.1fмкс",
+                getCount(), percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                percentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
+
+//Класс Метрики (счетчики, гистограммы задержек и события JFR; включаются свойством lab4.metrics)
+final class Metrics {
+    //при false все проверки if (Metrics.ENABLED) удаляются JIT-компилятором
+    public static final boolean ENABLED = Boolean.getBoolean("lab4.metrics");
+
+    public static final LongAdder MOVES_GENERATED = new LongAdder(); //сгенерировано ходов
+    public static final LongAdder MOVES_MADE = new LongAdder(); //сделано ходов через movePiece
+    public static final LongAdder ILLEGAL_MOVES = new LongAdder(); //отклонено невозможных ходов
+    public static final LatencyHistogram MOVE_TIME = new LatencyHistogram(); //время movePiece
+    public static final LatencyHistogram RENDER_TIME = new LatencyHistogram(); //время отрисовки
+    public static final LatencyHistogram[] THINK_TIME = {new LatencyHistogram(), new LatencyHistogram()}; //время на ход по цвету
+
+    private static ScheduledExecutorService dumper; //поток периодической записи
+
+    private Metrics() { }
+
+    //Событие JFR: ход
+    @jdk.jfr.Name("lab4.Move")
+    @jdk.jfr.Label("Move")
+    @jdk.jfr.Category("lab4")
+    static final class MoveEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Move") String move; //ход в виде e2e4
+        @jdk.jfr.Label("State") int state; //состояние после хода
+    }
+
+    //Событие JFR: отрисовка
+    @jdk.jfr.Name("lab4.Render")
+    @jdk.jfr.Label("Render")
+    @jdk.jfr.Category("lab4")
+    static final class RenderEvent extends jdk.jfr.Event {
+    }
+
+    //Событие JFR: обдумывание хода
+    @jdk.jfr.Name("lab4.Think")
+    @jdk.jfr.Label("Think")
+    @jdk.jfr.Category("lab4")
+    static final class ThinkEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Side") String side; //цвет
+        @jdk.jfr.Label("Bot") boolean bot; //ход движка
+        @jdk.jfr.Label("Think Time") @jdk.jfr.Timespan(jdk.jfr.Timespan.NANOSECONDS) long time; //время на ход
+    }
+
+    //текущее время для замеров (0, если метрики выключены)
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    //снимок всех метрик (задержки в наносекундах)
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("moves.generated", MOVES_GENERATED.sum());
+        m.put("moves.made", MOVES_MADE.sum());
+        m.put("moves.illegal", ILLEGAL_MOVES.sum());
+        put(m, "move", MOVE_TIME);
+        put(m, "render", RENDER_TIME);
+        put(m, "think.black", THINK_TIME[Color.BLACK.ordinal()]);
+        put(m, "think.white", THINK_TIME[Color.WHITE.ordinal()]);
+        return m;
+    }
+
+    //процентили гистограммы в снимке
+    private static void put(Map<String, Long> m, String name, LatencyHistogram h) {
+        m.put(name + ".count", h.getCount());
+        m.put(name + ".p50", h.percentile(50));
+        m.put(name + ".p99", h.percentile(99));
+        m.put(name + ".max", h.getMax());
+    }
+
+    //снимок в виде строк "имя=значение"
+    public static String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    //периодическая запись снимка в файл (через временный файл с атомарной заменой)
+    public static synchronized void startDump(Path file, long periodMillis) {
+        if (!ENABLED || dumper != null) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.writeString(tmp, format(), StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Ошибка записи метрик: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //остановка периодической записи
+    public static synchronized void stopDump() {
+        if (dumper != null) dumper.shutdownNow();
+        dumper = null;
+    }
+}
+
+//Класс Сервер партий (партии закреплены за небольшим пулом однопоточных циклов событий)
+class GameServer implements AutoCloseable {
+    //Класс Сессия (одна партия)
+    private static final class Session {
+        final Game game; //партия
+        final ExecutorService loop; //цикл событий сессии
+
+        Session(Game game, ExecutorService loop) {
+            this.game = game;
+            this.loop = loop;
+        }
+    }
 
-    private Square[][] board = new Square[8][8]; //доска
+    private final ExecutorService[] loops; //циклы событий
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>(); //открытые партии
+    private final AtomicLong nextId = new AtomicLong(); //следующий номер сессии
+    private final LatencyHistogram latency = new LatencyHistogram(); //задержки обработки ходов
+    private volatile boolean running = true; //сервер работает
+    private volatile GameLog gameLog; //журнал законченных партий (может отсутствовать)
+    private volatile PlayerRegistry registry; //реестр игроков (может отсутствовать)
+    private Thread acceptor; //поток сетевого транспорта
 
-    public Board() {
-        initBoard();
+    public GameServer(int loopCount) {
+        loops = new ExecutorService[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            String name = "game-loop-" + i;
+            loops[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
     }
 
-    //инициализация доски
-    private void initBoard() {
-        for (int y = 0; y < 8; y++) {
-            for (int x = 0; x < 8; x++) {
-                if (y <= 1) {
-                    board[x][y] = new Square(new Coordinates(x, y), SCHEME[y][x], Color.WHITE);
-                } else if (y >= 6) {
-                    board[x][y] = new Square(new Coordinates(x, y), SCHEME[y - 4][x], Color.BLACK);
-                } else {
-                    board[x][y] = new Square(new Coordinates(x, y));
+    //открыть партию, возвращает номер сессии
+    public long open(String white, String black) {
+        long id = nextId.incrementAndGet();
+        sessions.put(id, new Session(new Game(white, black, registry), loops[(int) (id % loops.length)]));
+        return id;
+    }
+
+    //закрыть партию
+    public void close(long id) {
+        sessions.remove(id);
+    }
+
+    //количество открытых партий
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    //передать команду партии; ответ "ok <состояние>" или "error <сообщение>"
+    public CompletableFuture<String> submit(long id, String command) {
+        long start = System.nanoTime();
+        Session session = sessions.get(id);
+        if (session == null) return CompletableFuture.completedFuture("error Нет партии " + id);
+        return CompletableFuture.supplyAsync(() -> {
+            String reply;
+            try {
+                int state = session.game.submit(command);
+                reply = "ok " + state;
+                if (session.game.isOver()) {
+                    sessions.remove(id);
+                    GameLog log = gameLog;
+                    if (log != null) session.game.record(log);
                 }
+            } catch (InvalidMoveException e) {
+                reply = "error " + e.getMessage();
+            } catch (IOException e) {
+                reply = "error Журнал: " + e.getMessage();
+            } catch (RuntimeException e) {
+                reply = "error Внутренняя ошибка: " + e;
             }
+            latency.record(System.nanoTime() - start);
+            return reply;
+        }, session.loop);
+    }
+
+    //снимок позиции партии для зрителей (null, если партии нет)
+    public PositionSnapshot snapshot(long id) {
+        Session session = sessions.get(id);
+        return session == null ? null : session.game.getBoard().getSnapshot();
+    }
+
+    //установка реестра игроков для новых партий
+    public void setPlayerRegistry(PlayerRegistry registry) {
+        this.registry = registry;
+    }
+
+    //установка журнала законченных партий
+    public void setGameLog(GameLog log) {
+        gameLog = log;
+    }
+
+    //гистограмма задержек обработки ходов
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    //сетевой транспорт: строки "new <белые> <черные>", "<ход>", "exit" на локальном порту
+    public void listen(int port) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        acceptor = new Thread(() -> serve(selector, server), "game-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    //Класс Соединение (буферы и сессия одного клиента)
+    private static final class Connection {
+        final SelectionKey key; //ключ канала в селекторе
+        ByteBuffer in = ByteBuffer.allocate(256); //входящие байты (растет до MAX_LINE)
+        boolean skipping = false; //пропуск остатка слишком длинной строки
+        final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>(); //ответы к отправке
+        final AtomicBoolean queued = new AtomicBoolean(); //соединение стоит в очереди на запись
+        long session = -1; //номер сессии
+
+        Connection(SelectionKey key) {
+            this.key = key;
         }
     }
 
-    //вывод доски
-    public void drawBoard() {
-        for (int y = 7; y >= 0; y--) {
-            System.out.print((y + 1));
-            for (int x = 0; x < 8; x++) {
-                Square sq = board[x][y];
-                if (sq.hasPiece()) {
-                    Piece p = sq.getPiece();
-                    String symbol = switch (p.getType()) {
-                        case PAWN -> p.getColor() == Color.WHITE ? "\u2659" : "\u265F";
-                        case ROOK -> p.getColor() == Color.WHITE ? "\u2656" : "\u265C";
-                        case KNIGHT -> p.getColor() == Color.WHITE ? "\u2658" : "\u265E";
-                        case BISHOP -> p.getColor() == Color.WHITE ? "\u2657" : "\u265D";
-                        case KING -> p.getColor() == Color.WHITE ? "\u2654" : "\u265A";
-                        case QUEEN -> p.getColor() == Color.WHITE ? "\u2655" : "\u265B";
-                    };
-                    System.out.print("|" + symbol + " ");
-                } else {
-                    System.out.print("|  ");
+    private static final int MAX_LINE = 4096; //максимальная длина строки команды
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>(); //соединения с новыми ответами
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(); //селектор уже разбужен для записи
+
+    //цикл выбора готовых каналов
+    private void serve(Selector selector, ServerSocketChannel server) {
+        try (selector; server) {
+            while (running) {
+                selector.select(100);
+                wakeupPending.set(false);
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    if (pending.key.isValid()) pending.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            SocketChannel ch = server.accept();
+                            if (ch == null) continue;
+                            ch.configureBlocking(false);
+                            SelectionKey chKey = ch.register(selector, SelectionKey.OP_READ);
+                            chKey.attach(new Connection(chKey));
+                        } else {
+                            if (key.isReadable()) read(key, selector);
+                            if (key.isValid() && key.isWritable()) write(key);
+                        }
+                    } catch (IOException e) {
+                        disconnect(key);
+                    }
                 }
             }
-            System.out.println("|");
+        } catch (IOException e) {
+            System.out.println("Ошибка сервера: " + e.getMessage());
         }
-        System.out.println("  A  B  C  D  E  F  G  H");
     }
 
-    //отображение ходов фигуры
-    public boolean drawMoves(Coordinates pos) {
-        List<Coordinates> moves = getMoves(pos);
-        if (moves.isEmpty()) return false;
+    //чтение строк команд клиента
+    private void read(SelectionKey key, Selector selector) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Connection c = (Connection) key.attachment();
+        if (ch.read(c.in) < 0) {
+            disconnect(key);
+            return;
+        }
+        c.in.flip();
+        int start = c.in.position();
+        for (int i = start; i < c.in.limit(); i++) {
+            if (c.in.get(i) != '\n') continue;
+            if (c.skipping) {
+                c.skipping = false;
+            } else {
+                handle(c, new String(c.in.array(), start, i - start, StandardCharsets.UTF_8).trim(), selector);
+            }
+            start = i + 1;
+        }
+        c.in.position(start);
+        c.in.compact();
+        if (c.in.hasRemaining()) return;
+        if (c.in.capacity() < MAX_LINE) {
+            c.in.flip();
+            c.in = ByteBuffer.allocate(c.in.capacity() * 2).put(c.in);
+        } else {
+            if (!c.skipping) reply(c, "error Строка длиннее " + MAX_LINE + " байт", selector);
+            c.skipping = true;
+            c.in.clear();
+        }
+    }
 
-        for (int y = 7; y >= 0; y--) {
-            System.out.print((y + 1));
-            for (int x = 0; x < 8; x++) {
-                boolean found = false;
-                for (Coordinates m : moves) {
-                    if (m.equals(new Coordinates(x, y))) {
-                        System.out.print("| *");
-                        found = true;
-                        break;
+    //отключение клиента: партия соединения закрывается вместе с каналом
+    private void disconnect(SelectionKey key) throws IOException {
+        Connection c = (Connection) key.attachment();
+        if (c != null && c.session >= 0) close(c.session);
+        key.cancel();
+        key.channel().close();
+    }
+
+    //обработка строки команды
+    private void handle(Connection c, String line, Selector selector) {
+        String[] parts = line.split("\\s+");
+        if (parts[0].equals("new")) {
+            if (c.session >= 0) close(c.session);
+            c.session = open(parts.length > 1 ? parts[1] : "white", parts.length > 2 ? parts[2] : "black");
+            reply(c, "ok " + c.session, selector);
+        } else if (c.session < 0) {
+            reply(c, "error Партия не открыта", selector);
+        } else {
+            submit(c.session, line).whenComplete((r, e) -> reply(c, e == null ? r : "error Внутренняя ошибка: " + e, selector));
+        }
+    }
+
+    //постановка ответа в очередь отправки; селектор будится только для соединений, еще не стоящих в очереди
+    private void reply(Connection c, String text, Selector selector) {
+        c.out.add(ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8)));
+        if (!c.queued.compareAndSet(false, true)) return;
+        pendingWrites.add(c);
+        if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    //отправка ответов клиенту; когда очередь пуста, интерес к записи снимается
+    private static void write(SelectionKey key) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Connection c = (Connection) key.attachment();
+        ByteBuffer b;
+        while ((b = c.out.peek()) != null) {
+            ch.write(b);
+            if (b.hasRemaining()) return;
+            c.out.poll();
+        }
+        c.queued.set(false);
+        if (!c.out.isEmpty() && c.queued.compareAndSet(false, true)) return; //ответ пришел во время записи
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    //остановка сервера
+    @Override
+    public void close() {
+        running = false;
+        for (ExecutorService loop : loops) loop.shutdown();
+    }
+
+    //нагрузочный прогон: партии случайными ходами через транспорт в памяти
+    public static void runBenchmark(int games, int loopCount) {
+        try (GameServer server = new GameServer(loopCount)) {
+            int[] buf = new int[Move.MAX_MOVES];
+            Random rnd = new Random(1);
+            long[] ids = new long[games];
+            Board[] replicas = new Board[games];
+            for (int i = 0; i < games; i++) {
+                ids[i] = server.open("w" + i, "b" + i);
+                replicas[i] = new Board();
+            }
+            long start = System.nanoTime();
+            long moves = 0;
+            boolean active = true;
+            for (int ply = 0; ply < 200 && active; ply++) {
+                active = false;
+                List<CompletableFuture<String>> pending = new ArrayList<>();
+                for (int i = 0; i < games; i++) {
+                    if (replicas[i] == null) continue;
+                    int n = replicas[i].getLegalMoves(buf);
+                    if (n == 0) {
+                        replicas[i] = null;
+                        continue;
                     }
+                    int m = buf[rnd.nextInt(n)];
+                    pending.add(server.submit(ids[i], Move.toString(m)));
+                    int state = replicas[i].movePiece(Coordinates.of(Move.from(m)), Coordinates.of(Move.to(m)));
+                    if (state != 0 && state != Board.STATE_CHECK) replicas[i] = null;
+                    active = true;
+                    moves++;
                 }
-                if (!found) System.out.print("|  ");
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
             }
-            System.out.println("|");
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Партий: %d, ходов: %d, ходов/с: %.0f%n", games, moves, moves / seconds);
+            System.out.println("Задержка хода: " + server.getLatency().summary());
         }
-        System.out.println("  A  B  C  D  E  F  G  H");
-        getSquare(pos).printInfo();
-        return true;
     }
+}
 
-    //получение ходов фигуры по координатам
-    public List<Coordinates> getMoves(Coordinates pos) {
-        return getSquare(pos).getMoves(board, activeColor);
+//Класс Запись партии из журнала
+final class GameRecord {
+    private final String white; //имя белых
+    private final String black; //имя черных
+    private final int state; //итоговое состояние игры
+    private final long durationMillis; //длительность партии
+    private final short[] moves; //ходы по 16 бит: откуда (6 бит) и куда (6 бит)
+
+    public GameRecord(String white, String black, int state, long durationMillis, short[] moves) {
+        this.white = white;
+        this.black = black;
+        this.state = state;
+        this.durationMillis = durationMillis;
+        this.moves = moves;
     }
 
-    //получение клетки по координатам
-    public Square getSquare(Coordinates pos) {
-        return board[pos.getX()][pos.getY()];
+    public String getWhite() { return white; }
+
+    public String getBlack() { return black; }
+
+    public int getState() { return state; }
+
+    public long getDurationMillis() { return durationMillis; }
+
+    public int getMoveCount() { return moves.length; }
+
+    //ход с номером i (младшие 12 бит совпадают с форматом Move)
+    public int move(int i) { return moves[i] & 0xFFF; }
+
+    //упаковка хода в 16 бит
+    public static short pack(int move) {
+        return (short) (move & 0xFFF);
     }
 
-    //проверка наличия фигуры на клетке
-    public boolean sqHasPiece(Coordinates pos) {
-        return getSquare(pos).hasPiece();
+    //воспроизведение партии на доске с начальной позицией
+    public void replay(Board board) {
+        board.reset();
+        for (int i = 0; i < moves.length; i++) {
+            board.makeMove(board.toMove(Move.from(moves[i]), Move.to(moves[i])));
+        }
     }
+}
 
-    //получение фигуры на клетке
-    public Piece getSqPiece(Coordinates pos) {
-        return getSquare(pos).getPiece();
+//Класс Журнал партий (сегменты только для дописывания, чтение через отображение в память)
+//Запись: длина (int), состояние (byte), длительность мс (long), имена (short длина + UTF-8), число ходов (short), ходы (short)
+class GameLog implements AutoCloseable {
+    private static final long SEGMENT_SIZE = 64L << 20; //максимальный размер сегмента
+    private static final int INDEX_STRIDE = 1024; //шаг разреженного индекса (партий)
+    private static final int INDEX_ENTRY = 12; //запись индекса: сегмент (int) и смещение (long)
+
+    private final Path dir; //каталог журнала
+    private final FileChannel index; //файл разреженного индекса
+    private final List<MappedByteBuffer> mapped = new ArrayList<>(); //отображенные сегменты для чтения
+    private FileChannel segment; //текущий сегмент для дописывания
+    private int segmentNo; //номер текущего сегмента
+    private long segmentPos; //размер текущего сегмента
+    private long count; //количество партий
+    private ByteBuffer writeBuf = ByteBuffer.allocate(1024); //буфер записи
+
+    public GameLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        index = FileChannel.open(dir.resolve("games.idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
     }
 
-    //смена текущего цвета
-    public void changeActive() {
-        activeColor = (activeColor == Color.WHITE) ? Color.BLACK : Color.WHITE;
+    //путь к сегменту
+    private Path segmentPath(int no) {
+        return dir.resolve(String.format("games-%05d.log", no));
     }
 
-    //получение текущего цвета
-    public Color getActive() {
-        return activeColor;
+    //восстановление состояния: последняя запись индекса и досчет партий после нее; недописанный хвост отбрасывается
+    private void recover() throws IOException {
+        long entries = index.size() / INDEX_ENTRY;
+        index.truncate(entries * INDEX_ENTRY);
+        int seg = 0;
+        long pos = 0;
+        if (entries > 0) {
+            ByteBuffer e = ByteBuffer.allocate(INDEX_ENTRY);
+            index.read(e, (entries - 1) * INDEX_ENTRY);
+            seg = e.getInt(0);
+            pos = e.getLong(4);
+            count = (entries - 1) * INDEX_STRIDE;
+        }
+        while (true) {
+            Path path = segmentPath(seg);
+            long size = Files.exists(path) ? Files.size(path) : 0;
+            ByteBuffer len = ByteBuffer.allocate(4);
+            try (FileChannel ch = Files.exists(path) ? FileChannel.open(path, StandardOpenOption.READ) : null) {
+                while (ch != null && pos + 4 <= size) {
+                    len.clear();
+                    ch.read(len, pos);
+                    int n = len.getInt(0);
+                    if (n <= 0 || pos + 4 + n > size) break;
+                    pos += 4 + n;
+                    count++;
+                }
+            }
+            if (!Files.exists(segmentPath(seg + 1))) break;
+            seg++;
+            pos = 0;
+        }
+        segmentNo = seg;
+        segment = FileChannel.open(segmentPath(seg), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.truncate(pos);
+        segmentPos = pos;
     }
 
-    //проверить возможность сдвинуть выбранную фигуру
-    public boolean checkOwner(Coordinates pos) {
-        return getSqPiece(pos).getColor() == getActive();
+    //запись в индекс положения партии с номером, кратным шагу
+    private void writeIndex(int seg, long pos) throws IOException {
+        ByteBuffer e = ByteBuffer.allocate(INDEX_ENTRY);
+        e.putInt(seg).putLong(pos).flip();
+        index.write(e, index.size());
     }
 
-    //передвижение фигуры
-    public int movePiece(Coordinates c1, Coordinates c2) {
-        int state = 0;
-        if (!sqHasPiece(c1)) {
-            System.out.println("Поле пустое");
-            return state;
+    //количество партий в журнале
+    public long size() {
+        return count;
+    }
+
+    //добавление партии; ходы берутся из истории доски
+    public synchronized long append(String white, String black, int state, Duration duration, Board board) throws IOException {
+        byte[] w = white.getBytes(StandardCharsets.UTF_8);
+        byte[] b = black.getBytes(StandardCharsets.UTF_8);
+        int moves = Math.min(board.getUndoSize(), Short.MAX_VALUE);
+        int len = 1 + 8 + 2 + w.length + 2 + b.length + 2 + moves * 2;
+        if (writeBuf.capacity() < len + 4) writeBuf = ByteBuffer.allocate(Integer.highestOneBit(len + 4) * 2);
+        writeBuf.clear();
+        writeBuf.putInt(len).put((byte) state).putLong(duration == null ? 0 : duration.toMillis());
+        writeBuf.putShort((short) w.length).put(w).putShort((short) b.length).put(b).putShort((short) moves);
+        for (int i = 0; i < moves; i++) writeBuf.putShort(GameRecord.pack(board.getHistoryMove(i)));
+        writeBuf.flip();
+        if (segmentPos > 0 && segmentPos + len + 4 > SEGMENT_SIZE) {
+            segment.close();
+            segmentNo++;
+            segmentPos = 0;
+            segment = FileChannel.open(segmentPath(segmentNo), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        if (count % INDEX_STRIDE == 0 && index.size() / INDEX_ENTRY <= count / INDEX_STRIDE) {
+            writeIndex(segmentNo, segmentPos);
+        }
+        while (writeBuf.hasRemaining()) segmentPos += segment.write(writeBuf, segmentPos);
+        return count++;
+    }
+
+    //чтение партии по номеру: переход по разреженному индексу и пропуск не более INDEX_STRIDE-1 записей
+    public synchronized GameRecord get(long gameIndex) throws IOException {
+        if (gameIndex < 0 || gameIndex >= count) throw new IndexOutOfBoundsException("Нет партии " + gameIndex);
+        ByteBuffer e = ByteBuffer.allocate(INDEX_ENTRY);
+        index.read(e, gameIndex / INDEX_STRIDE * INDEX_ENTRY);
+        int seg = e.getInt(0);
+        int pos = (int) e.getLong(4);
+        MappedByteBuffer buf = map(seg);
+        for (long i = gameIndex % INDEX_STRIDE; i > 0; i--) {
+            if (pos >= buf.limit()) {
+                buf = map(++seg);
+                pos = 0;
+            }
+            pos += 4 + buf.getInt(pos);
         }
+        if (pos >= buf.limit()) {
+            buf = map(++seg);
+            pos = 0;
+        }
+        int p = pos + 4;
+        int state = buf.get(p);
+        long duration = buf.getLong(p + 1);
+        p += 9;
+        String white = readString(buf, p);
+        p += 2 + buf.getShort(p);
+        String black = readString(buf, p);
+        p += 2 + buf.getShort(p);
+        short[] moves = new short[buf.getShort(p)];
+        p += 2;
+        for (int i = 0; i < moves.length; i++, p += 2) moves[i] = buf.getShort(p);
+        return new GameRecord(white, black, state, duration, moves);
+    }
 
-        List<Coordinates> moves = getMoves(c1);
-        boolean found = moves.stream().anyMatch(m -> m.equals(c2));
+    //строка UTF-8 с длиной
+    private static String readString(ByteBuffer buf, int p) {
+        byte[] bytes = new byte[buf.getShort(p)];
+        buf.get(p + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-        if (found) {
-            if (sqHasPiece(c2) && getSqPiece(c2).getType() == PieceType.KING) {
-                state = (getActive() == Color.WHITE) ? 1 : 2;
+    //отображение сегмента (перестраивается, если сегмент вырос после прошлого отображения)
+    private MappedByteBuffer map(int seg) throws IOException {
+        while (mapped.size() <= seg) mapped.add(null);
+        MappedByteBuffer buf = mapped.get(seg);
+        long size = seg == segmentNo ? segmentPos : Files.size(segmentPath(seg));
+        if (buf == null || buf.limit() < size) {
+            try (FileChannel ch = FileChannel.open(segmentPath(seg), StandardOpenOption.READ)) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
             }
-            getSqPiece(c1).incMoves();
-            getSquare(c2).setPiece(getSqPiece(c1));
-            getSquare(c1).removePiece();
-            changeActive();
-        } else {
-            System.out.println("Фигура не может сюда пойти");
+            mapped.set(seg, buf);
+        }
+        return buf;
+    }
+
+    //сброс записанного на диск
+    public synchronized void flush() throws IOException {
+        segment.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segment.close();
+        index.close();
+        mapped.clear();
+    }
+
+    //запуск из командной строки: games <каталог> [номер]
+    public static void run(String[] args) throws IOException {
+        try (GameLog log = new GameLog(Paths.get(args[0]))) {
+            if (args.length < 2) {
+                System.out.println("Партий в журнале: " + log.size());
+                return;
+            }
+            GameRecord r = log.get(Long.parseLong(args[1]));
+            System.out.printf("%s - %s, состояние %d, %d мс%n", r.getWhite(), r.getBlack(), r.getState(),
+                    r.getDurationMillis());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < r.getMoveCount(); i++) {
+                if (i % 2 == 0) sb.append(i / 2 + 1).append(". ");
+                sb.append(Move.toString(r.move(i))).append(' ');
+            }
+            System.out.println(sb.toString().trim());
         }
-        return state;
     }
 }
 
@@ -596,6 +4395,11 @@ class Timer {
         duration = Duration.between(startTime, Instant.now());
     }
 
+    //длительность игры (null, пока таймер не остановлен)
+    public Duration getDuration() {
+        return duration;
+    }
+
     //вывод продолжительности игры
     public void printTime() {
         long hours = duration.toHours();
@@ -607,10 +4411,14 @@ class Timer {
 
 //Класс Игрок
 class Player {
+    public static final double INITIAL_RATING = 1500; //начальный рейтинг Эло
+    private static final double K_FACTOR = 32; //коэффициент изменения рейтинга
+
     private String name; //имя
-    private int wonGames = 0; //кол-во побед
-    private int lostGames = 0; //кол-во поражений
-    private int playedGames = 0; //кол-во игр
+    private final LongAdder wonGames = new LongAdder(); //кол-во побед
+    private final LongAdder lostGames = new LongAdder(); //кол-во поражений
+    private final LongAdder drawnGames = new LongAdder(); //кол-во ничьих
+    private final AtomicLong rating = new AtomicLong(Double.doubleToLongBits(INITIAL_RATING)); //рейтинг Эло (биты double)
 
     public Player(String name) {
         this.name = name;
@@ -618,7 +4426,10 @@ class Player {
 
     //очистка статистики игрока
     public void clearStats() {
-        wonGames = lostGames = playedGames = 0;
+        wonGames.reset();
+        lostGames.reset();
+        drawnGames.reset();
+        setRating(INITIAL_RATING);
     }
 
     //установка имени игрока
@@ -628,26 +4439,155 @@ class Player {
     public String getName() { return name; }
 
     //добавление выигранной игры
-    public void incWonGames() { wonGames++; playedGames++; }
+    public void incWonGames() { wonGames.increment(); }
 
     //добавление проигранной игры
-    public void incLostGames() { lostGames++; playedGames++; }
+    public void incLostGames() { lostGames.increment(); }
+
+    //добавление ничьей
+    public void incDrawnGames() { drawnGames.increment(); }
+
+    //добавление сохраненной статистики
+    public void addStats(long won, long lost, long drawn) {
+        wonGames.add(won);
+        lostGames.add(lost);
+        drawnGames.add(drawn);
+    }
 
     //получение количества выигранных игр
-    public int getWonGames() { return wonGames; }
+    public long getWonGames() { return wonGames.sum(); }
 
     //получение количества проигранных игр
-    public int getLostGames() { return lostGames; }
+    public long getLostGames() { return lostGames.sum(); }
+
+    //получение количества ничьих
+    public long getDrawnGames() { return drawnGames.sum(); }
 
     //получение количества игр
-    public int getPlayedGames() { return playedGames; }
+    public long getPlayedGames() { return wonGames.sum() + lostGames.sum() + drawnGames.sum(); }
+
+    //получение рейтинга
+    public double getRating() { return Double.longBitsToDouble(rating.get()); }
+
+    //установка рейтинга
+    public void setRating(double value) { rating.set(Double.doubleToLongBits(value)); }
+
+    //изменение рейтинга без блокировок
+    private void addRating(double delta) {
+        long prev, next;
+        do {
+            prev = rating.get();
+            next = Double.doubleToLongBits(Double.longBitsToDouble(prev) + delta);
+        } while (!rating.compareAndSet(prev, next));
+    }
+
+    //учет результата партии: score - очки белых (1, 0.5 или 0)
+    public static void recordResult(Player white, Player black, double score) {
+        if (score == 1) {
+            white.incWonGames();
+            black.incLostGames();
+        } else if (score == 0) {
+            black.incWonGames();
+            white.incLostGames();
+        } else {
+            white.incDrawnGames();
+            black.incDrawnGames();
+        }
+        double expected = 1 / (1 + Math.pow(10, (black.getRating() - white.getRating()) / 400));
+        double delta = K_FACTOR * (score - expected);
+        white.addRating(delta);
+        black.addRating(-delta);
+    }
 
     //вывод статистики игрока
     public void printStats() {
         System.out.println("Имя: " + name);
-        System.out.println("Кол-во побед: " + wonGames);
-        System.out.println("Кол-во поражений: " + lostGames);
-        System.out.println("Всего игр: " + playedGames);
+        System.out.println("Кол-во побед: " + getWonGames());
+        System.out.println("Кол-во поражений: " + getLostGames());
+        System.out.println("Кол-во ничьих: " + getDrawnGames());
+        System.out.println("Всего игр: " + getPlayedGames());
+        System.out.printf("Рейтинг: %.0f%n", getRating());
+    }
+}
+
+//Класс Реестр игроков (статистика по имени с отложенной записью в файл)
+class PlayerRegistry implements AutoCloseable {
+    private static final long FLUSH_MS = 1000; //период записи изменений
+
+    private final Path file; //файл снимка
+    private final ConcurrentHashMap<String, Player> players = new ConcurrentHashMap<>(); //игроки по имени
+    private final AtomicBoolean dirty = new AtomicBoolean(); //есть незаписанные изменения
+    private final ScheduledExecutorService writer; //поток отложенной записи
+
+    public PlayerRegistry(Path file) throws IOException {
+        this.file = file;
+        load();
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "player-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                dirty.set(true);
+                System.err.println("Ошибка записи игроков: " + e.getMessage());
+            }
+        }, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    //игрок по имени (создается при первом обращении)
+    public Player get(String name) {
+        return players.computeIfAbsent(name, Player::new);
+    }
+
+    //количество игроков
+    public int size() {
+        return players.size();
+    }
+
+    //учет результата партии с отложенной записью
+    public void recordResult(Player white, Player black, double score) {
+        Player.recordResult(white, black, score);
+        dirty.set(true);
+    }
+
+    //чтение снимка: строки "имя<TAB>победы<TAB>поражения<TAB>ничьи<TAB>рейтинг"
+    private void load() throws IOException {
+        if (!Files.exists(file)) return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] f = line.split("\t");
+            if (f.length != 5) continue;
+            Player p = get(f[0]);
+            p.clearStats();
+            p.addStats(Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]));
+            p.setRating(Double.parseDouble(f[4]));
+        }
+    }
+
+    //запись снимка во временный файл с атомарной заменой (только при наличии изменений)
+    public synchronized void flush() throws IOException {
+        if (!dirty.getAndSet(false)) return;
+        StringBuilder sb = new StringBuilder(players.size() * 32);
+        for (Player p : players.values()) {
+            sb.append(p.getName()).append('\t').append(p.getWonGames()).append('\t').append(p.getLostGames())
+                    .append('\t').append(p.getDrawnGames()).append('\t').append(p.getRating()).append('\n');
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(FLUSH_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
     }
 }
 
@@ -657,33 +4597,148 @@ class Game {
     private Player blackPlayer; //игрок 2
     private Board board; //доска
     private Timer timer; //таймер
-    private static int gamesPlayed = 0; //счетчик игр
+    private ParallelSearch engine; //движок для игрока с именем bot
+    private BoardRenderer renderer; //отрисовщик экрана (создается в play)
+    private int state = 0; //состояние игры
+    private PlayerRegistry registry; //реестр игроков (может отсутствовать)
+    private boolean finished = false; //результат уже учтен
+    private static final LongAdder gamesPlayed = new LongAdder(); //счетчик игр
+    private static final String BOT_NAME = "bot"; //имя игрока, управляемого движком
+    private static final long BOT_TIME_MS = 1000; //время на ход движка
 
-    public Game(Scanner scanner) {
-        gamesPlayed++;
+    public Game(Scanner scanner, PlayerRegistry registry) {
+        gamesPlayed.increment();
+        this.registry = registry;
         System.out.print("Введите имя 1 игрока: ");
-        whitePlayer = new Player(scanner.nextLine().trim());
+        whitePlayer = player(scanner.nextLine().trim());
         System.out.print("Введите имя 2 игрока: ");
-        blackPlayer = new Player(scanner.nextLine().trim());
+        blackPlayer = player(scanner.nextLine().trim());
+        board = new Board();
+        if (isBot(whitePlayer) || isBot(blackPlayer)) {
+            engine = new ParallelSearch(new TranspositionTable(16), Runtime.getRuntime().availableProcessors());
+            engine.setBook(loadBook());
+            engine.setTablebases(loadTablebases());
+        }
+    }
+
+    //таблицы эндшпиля из каталога lab4.tb (null, если каталога нет)
+    private static Tablebases loadTablebases() {
+        Path dir = Paths.get(System.getProperty("lab4.tb", "tb"));
+        if (!Files.isDirectory(dir)) return null;
+        try {
+            return Tablebases.load(dir);
+        } catch (IOException e) {
+            System.out.println("Таблицы не загружены: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //дебютная книга из файла lab4.book (null, если файла нет)
+    static OpeningBook loadBook() {
+        Path path = Paths.get(System.getProperty("lab4.book", "book.bin"));
+        if (!Files.exists(path)) return null;
+        try {
+            return new OpeningBook(path);
+        } catch (IOException e) {
+            System.out.println("Книга не загружена: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //партия без консоли (ходы передаются через submit)
+    public Game(String whiteName, String blackName, PlayerRegistry registry) {
+        gamesPlayed.increment();
+        this.registry = registry;
+        whitePlayer = player(whiteName);
+        blackPlayer = player(blackName);
         board = new Board();
+        timer = new Timer();
+    }
+
+    //выполнение команды: ход "e2 e4" или "e2e4", либо "exit"; возвращает состояние игры
+    public int submit(String command) throws InvalidMoveException {
+        if (isOver()) throw new InvalidMoveException("Игра окончена");
+        String cmd = command.trim();
+        if (cmd.equals("exit")) {
+            state = -1;
+            timer.stopTimer();
+            finish();
+            return state;
+        }
+        String[] parts = cmd.length() == 4
+                ? new String[]{cmd.substring(0, 2), cmd.substring(2)}
+                : cmd.split("\\s+");
+        if (parts.length != 2) {
+            throw new InvalidMoveException("Некорректная команда: '" + cmd + "'");
+        }
+        Coordinates c1 = Coordinates.convert(parts[0]);
+        Coordinates c2 = Coordinates.convert(parts[1]);
+        if (!board.isLegal(c1, c2)) {
+            if (Metrics.ENABLED) Metrics.ILLEGAL_MOVES.increment();
+            throw new InvalidMoveException("Ход '" + cmd + "' невозможен");
+        }
+        state = board.movePiece(c1, c2);
+        if (isOver()) {
+            timer.stopTimer();
+            finish();
+        }
+        return state;
+    }
+
+    //проверка окончания игры
+    public boolean isOver() {
+        return state != 0 && state != Board.STATE_CHECK;
+    }
+
+    //получение состояния игры
+    public int getState() {
+        return state;
+    }
+
+    //получение доски
+    public Board getBoard() {
+        return board;
+    }
+
+    //проверка, управляется ли игрок движком
+    private static boolean isBot(Player player) {
+        return player.getName().equalsIgnoreCase(BOT_NAME);
     }
 
     public static int getPlayedGames(){
-        return gamesPlayed;
+        return gamesPlayed.intValue();
+    }
+
+    //игрок из реестра или новый игрок без сохранения
+    private Player player(String name) {
+        return registry != null ? registry.get(name) : new Player(name);
+    }
+
+    //учет результата законченной игры в статистике и рейтинге игроков (один раз)
+    private void finish() {
+        if (finished) return;
+        finished = true;
+        double score;
+        if (state == Board.STATE_WHITE_MATES) score = 1;
+        else if (state == Board.STATE_BLACK_MATES) score = 0;
+        else score = 0.5;
+        if (registry != null) registry.recordResult(whitePlayer, blackPlayer, score);
+        else Player.recordResult(whitePlayer, blackPlayer, score);
     }
 
     //вывод результатов игры
     public void printResults(int state) {
+        if (state == Board.STATE_WHITE_MATES || state == Board.STATE_BLACK_MATES) {
+            System.out.println("Мат!");
+        }
         if (state == -1) {
             System.out.println("Ничья!");
-        } else if (state == 1) {
+        } else if (state == Board.STATE_STALEMATE) {
+            System.out.println("Пат! Ничья!");
+        } else if (state == Board.STATE_WHITE_MATES) {
             System.out.println("Белые победили!");
-            whitePlayer.incWonGames();
-            blackPlayer.incLostGames();
-        } else if (state == 2) {
+        } else if (state == Board.STATE_BLACK_MATES) {
             System.out.println("Черные победили!");
-            blackPlayer.incWonGames();
-            whitePlayer.incLostGames();
         }
         System.out.println();
         whitePlayer.printStats();
@@ -693,95 +4748,166 @@ class Game {
         timer.printTime();
     }
 
+    //сохранение законченной партии в журнал
+    public long record(GameLog log) throws IOException {
+        return log.append(whitePlayer.getName(), blackPlayer.getName(), state, timer.getDuration(), board);
+    }
+
     //вывод текущего цвета
     public void printActive() {
-        Color active = board.getActive();
-        if (active == Color.WHITE) {
-            System.out.println("white: " + whitePlayer.getName());
-        } else {
-            System.out.println("black: " + blackPlayer.getName());
+        System.out.println(activeLine());
+    }
+
+    //строка с текущим цветом и именем игрока
+    private String activeLine() {
+        if (board.getActive() == Color.WHITE) {
+            return "white: " + whitePlayer.getName();
+        }
+        return "black: " + blackPlayer.getName();
+    }
+
+    //запись времени на ход стороны
+    private static void recordThink(Color side, boolean bot, long start) {
+        if (!Metrics.ENABLED) return;
+        long nanos = System.nanoTime() - start;
+        Metrics.THINK_TIME[side.ordinal()].record(nanos);
+        Metrics.ThinkEvent event = new Metrics.ThinkEvent();
+        if (event.shouldCommit()) {
+            event.side = side.name();
+            event.bot = bot;
+            event.time = nanos;
+            event.commit();
         }
     }
 
-    //запуск игры
+    //запуск игры (консольный ввод; ходы выполняются через submit)
     public void play(Scanner scanner) {
         timer = new Timer();
-        int state = 0;
-        boolean prevWrong = false;
-
-        while (state == 0) {
-            System.out.print("\033[H\033[2J");
-            System.out.flush();
+        renderer = new BoardRenderer(Boolean.getBoolean("lab4.diffRender"));
+        board.setRenderer(renderer);
+        state = 0;
+        String error = null;
 
-            printActive();
-            board.drawBoard();
-            if (prevWrong) {
-                System.out.println("Ошибка");
-                prevWrong = false;
+        while (!isOver()) {
+            String footer = (error != null ? "Ошибка: " + error + "\n" : "") + (board.isInCheck() ? "Шах!\n" : "");
+            long renderStart = Metrics.start();
+            Metrics.RenderEvent renderEvent = Metrics.ENABLED ? new Metrics.RenderEvent() : null;
+            if (renderEvent != null) renderEvent.begin();
+            renderer.drawScreen(System.out, activeLine(), board.getBits(), footer);
+            if (Metrics.ENABLED) {
+                Metrics.RENDER_TIME.record(System.nanoTime() - renderStart);
+                renderEvent.commit();
             }
+            error = null;
 
-            try{
-                String s1 = scanner.nextLine().trim();
-                if (s1.equals("exit")) {
-                    state = -1;
-                    continue;
-                }
-
-                Coordinates c1 = Coordinates.convert(s1);
-                if (!c1.checkBound()) {
-                    prevWrong = true;
+            Color side = board.getActive();
+            Player current = side == Color.WHITE ? whitePlayer : blackPlayer;
+            long thinkStart = Metrics.start();
+            try {
+                if (engine != null && isBot(current)) {
+                    int m = engine.search(board, 0, 0, BOT_TIME_MS);
+                    recordThink(side, true, thinkStart);
+                    submit(Move.toString(m));
                     continue;
                 }
-
-                if (!board.sqHasPiece(c1) || !board.checkOwner(c1)) {
-                    prevWrong = true;
+                String s1 = scanner.nextLine().trim();
+                if (s1.equals("exit")) {
+                    submit(s1);
                     continue;
                 }
-
-                boolean hasMoves = board.drawMoves(c1);
-                if (!hasMoves) {
-                    prevWrong = true;
+                if (!board.drawMoves(Coordinates.convert(s1))) {
+                    error = "Нет ходов с поля '" + s1 + "'";
                     continue;
                 }
-
                 String s2 = scanner.nextLine().trim();
-                Coordinates c2 = Coordinates.convert(s2);
-                if (!c2.checkBound()) {
-                    prevWrong = true;
-                    continue;
-                }
-
-                state = board.movePiece(c1, c2);
+                recordThink(side, false, thinkStart);
+                submit(s1 + " " + s2);
             } catch (InvalidMoveException e) {
-                System.out.println("Ошибка: " + e.getMessage());
-                System.out.println("Попробуйте снова.");
+                error = e.getMessage();
             }
         }
 
         System.out.print("\033[H\033[2J");
         System.out.flush();
-        timer.stopTimer();
+        if (engine != null) engine.close();
         printResults(state);
     }
 }
 
 public class lab4 {
-    public static void main(String[] args) {
-        Piece p1 = new Pawn(new Coordinates(0,1), Color.WHITE);
-        Piece p2 = new King(new Coordinates(4,0), Color.WHITE);
+    public static void main(String[] args) throws InvalidPositionException, IOException {
+        if (args.length > 1 && args[0].equals("perft")) {
+            Perft.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("server")) {
+            GameServer server = new GameServer(Runtime.getRuntime().availableProcessors());
+            GameLog log = new GameLog(Paths.get(System.getProperty("lab4.gameLog", "games")));
+            server.setGameLog(log);
+            PlayerRegistry players = new PlayerRegistry(Paths.get(System.getProperty("lab4.players", "players.txt")));
+            server.setPlayerRegistry(players);
+            Metrics.startDump(Paths.get(System.getProperty("lab4.metricsFile", "metrics.txt")), 10_000);
+            server.listen(Integer.parseInt(args[1]));
+            System.out.println("Сервер запущен на порту " + args[1]);
+            new Scanner(System.in).nextLine();
+            System.out.println("Задержка хода: " + server.getLatency().summary());
+            server.close();
+            log.close();
+            players.close();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("serverbench")) {
+            GameServer.runBenchmark(Integer.parseInt(args[1]), Runtime.getRuntime().availableProcessors());
+            return;
+        }
+        if (args.length > 1 && args[0].equals("pgn")) {
+            PgnReader.run(args[1]);
+            return;
+        }
+        if (args.length > 1 && args[0].equals("selfplay")) {
+            SelfPlay.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("tb")) {
+            Tablebases.run(args[1]);
+            return;
+        }
+        if (args.length > 2 && args[0].equals("book")) {
+            OpeningBook.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("games")) {
+            GameLog.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("smp")) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            ParallelSearch.printScaling(new Board(), threads, 3000);
+            return;
+        }
+        Piece p1 = new Pawn(Coordinates.of(0,1), Color.WHITE);
+        Piece p2 = new King(Coordinates.of(4,0), Color.WHITE);
 
         System.out.println("Пешка: " + p1.getPattern().size() + " возможных направлений");
         System.out.println("Король: " + p2.getPattern().size() + " возможных направлений");
         Scanner scanner = new Scanner(System.in);
+        GameLog log = new GameLog(Paths.get(System.getProperty("lab4.gameLog", "games")));
+        PlayerRegistry players = new PlayerRegistry(Paths.get(System.getProperty("lab4.players", "players.txt")));
+        Metrics.startDump(Paths.get(System.getProperty("lab4.metricsFile", "metrics.txt")), 10_000);
         boolean stop = false;
         do{
-            Game game = new Game(scanner);
+            Game game = new Game(scanner, players);
             game.play(scanner);
+            game.record(log);
             System.out.println("Сыграть ещё раз? [y,n]: ");
             String s = scanner.nextLine().trim();
             if (s.charAt(0) == 'n') stop = true;
         }while (!stop);
         System.out.println("Сыграно игр: " + Game.getPlayedGames());
+        log.close();
+        players.close();
+        if (Metrics.ENABLED) System.out.print(Metrics.format());
+        Metrics.stopDump();
         scanner.close();
     }
 }